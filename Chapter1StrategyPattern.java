@@ -192,6 +192,675 @@ public static void main(String[] args){
 
 
 
+// Strategy at scale : batch dispatch by behavior
+
+// duck.fly() call flyBehavior.fly(), when FlyWithWings, NotFly and FlyWithRocket
+// all go through this ONE call site, the JIT see 3 receiver types (megamorphic)
+// and can not inline, every call is a virtual lookup
+
+// idea : group the ducks by their behavior class, then run each group in its own loop
+// 		 every loop only see ONE concrete class -> monomorphic, JIT can inline fly()
+//		 the grouping is the "pre binding" : done once, not per tick
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DuckFlock{
+	// same behavior class -> same group
+	private final Map<Class<?>, List<Duck>> groups = new IdentityHashMap<Class<?>, List<Duck>>();
+	// where each duck is inside its group, so a duck can be removed in O(1)
+	private final Map<Duck, Integer> slots = new IdentityHashMap<Duck, Integer>();
+
+	public void add(Duck duck){
+		Class<?> type = duck.getFlyBehavior().getClass();
+		List<Duck> group = groups.get(type);
+		if (group == null) {
+			group = new ArrayList<Duck>();
+			groups.put(type, group);
+		}
+		slots.put(duck, group.size());
+		group.add(duck);
+	}
+
+	// should be used instead of duck.flyMethodSetter() for ducks in a flock,
+	// so the duck move to the right group
+	public void changeBehavior(Duck duck, FlyBehavior f){
+		remove(duck);
+		duck.flyMethodSetter(f);
+		add(duck);
+	}
+
+	// swap the last duck of the group into the hole, no shifting
+	// the duck may have been changed with flyMethodSetter(), so search all groups for its slot
+	public void remove(Duck duck){
+		Integer slot = slots.remove(duck);
+		if (slot == null) {
+			return;
+		}
+		for (List<Duck> group : groups.values()) {
+			int i = slot;
+			if (i < group.size() && group.get(i) == duck) {
+				Duck last = group.remove(group.size() - 1);
+				if (last != duck) {
+					group.set(i, last);
+					slots.put(last, i);
+				}
+				return;
+			}
+		}
+	}
+
+	// after a kind wide swap (BehaviorHolder) the groups are out of date,
+	// build them again from the current behaviors, O(n)
+	public void regroup(){
+		ArrayList<Duck> all = new ArrayList<Duck>(slots.size());
+		for (List<Duck> group : groups.values()) {
+			all.addAll(group);
+		}
+		groups.clear();
+		slots.clear();
+		for (Duck d : all) {
+			add(d);
+		}
+	}
+
+	// one tick for the whole flock
+	public void flyAll(){
+		for (Map.Entry<Class<?>, List<Duck>> e : groups.entrySet()) {
+			flyBatch(e.getKey(), e.getValue());
+		}
+	}
+
+	// one loop per known class, the cast make the call site inside each loop monomorphic
+	// a duck changed with flyMethodSetter() behind our back is still in the old group,
+	// it go through the generic call instead of a wrong cast
+	static void flyBatch(Class<?> type, List<Duck> ducks){
+		int count = ducks.size();
+		if (type == FlyWithWings.class) {
+			for (int i = 0; i < count; i++) {
+				FlyBehavior b = ducks.get(i).getFlyBehavior();
+				if (b.getClass() == FlyWithWings.class) {
+					((FlyWithWings)b).fly();
+				} else {
+					b.fly();
+				}
+			}
+		} else if (type == NotFly.class) {
+			for (int i = 0; i < count; i++) {
+				FlyBehavior b = ducks.get(i).getFlyBehavior();
+				if (b.getClass() == NotFly.class) {
+					((NotFly)b).fly();
+				} else {
+					b.fly();
+				}
+			}
+		} else if (type == FlyWithRocket.class) {
+			for (int i = 0; i < count; i++) {
+				FlyBehavior b = ducks.get(i).getFlyBehavior();
+				if (b.getClass() == FlyWithRocket.class) {
+					((FlyWithRocket)b).fly();
+				} else {
+					b.fly();
+				}
+			}
+		} else {
+			// unknown behavior, still correct, just not specialized
+			for (int i = 0; i < count; i++) {
+				ducks.get(i).getFlyBehavior().fly();
+			}
+		}
+	}
+}
+
+// notice : this is still the Strategy Pattern, the duck still "has-a" FlyBehavior,
+// the flock only change the ORDER of the calls, not who decide the behavior
+// (and the order of fly() between ducks is not the insertion order anymore)
+
+
+// JMH comparison sketch : 1M ducks, 1/3 of each behavior, shuffled
+// - perObject : for (Duck d : ducks) d.fly();
+// - batched : flock.flyAll();
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+public class DuckFlyBenchmark{
+	@Param({"1000000"})
+	int size;
+
+	Duck[] ducks;
+	DuckFlock flock;
+
+	@Setup
+	public void setup(){
+		ducks = new Duck[size];
+		flock = new DuckFlock();
+		for (int i = 0; i < size; i++) {
+			ducks[i] = i % 3 == 0 ? new YellowDuck() : i % 3 == 1 ? new RubberDuck() : new RocketDuck();
+		}
+		Collections.shuffle(Arrays.asList(ducks));
+		for (Duck d : ducks) {
+			flock.add(d);
+		}
+	}
+
+	@Benchmark
+	public void perObject(){
+		for (int i = 0; i < ducks.length; i++) {
+			ducks[i].fly();
+		}
+	}
+
+	@Benchmark
+	public void batched(){
+		flock.flyAll();
+	}
+}
+
+
+
+// Share stateless behaviors (FLYWEIGHT)
+
+// every YellowDuck constructor call new FlyWithWings(), 1M ducks = 1M FlyWithWings objects,
+// but FlyWithWings has no field, all these objects are the same
+
+// idea : a registry that give out ONE shared instance per stateless behavior class
+// 		 a behavior with state (eg. remaining fuel of a rocket) must not be shared,
+//		 it opt out by NOT implementing the marker interface, and the duck keep calling new
+
+// marker : "this behavior has no mutable state, it is safe to share"
+public interface StatelessBehavior{
+}
+
+public class FlyWithWings implements FlyBehavior, StatelessBehavior{
+	@Override
+	public void fly(){
+		flyMethod();
+	}
+	public void flyMethod(){
+		// implementation;
+	}
+}
+
+public class NotFly implements FlyBehavior, StatelessBehavior{
+	@Override
+	public void fly(){
+		flyMethod();
+	}
+	public void flyMethod(){
+		// implementation;
+	}
+}
+
+// FlyWithRocket stay as it is (may keep fuel state), so it is never shared
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Behaviors{
+	private static final ConcurrentHashMap<Class<?>, Object> shared = new ConcurrentHashMap<Class<?>, Object>();
+
+	private Behaviors(){
+
+	}
+
+	// only stateless behaviors compile here, a stateful one is just created with new,
+	// so it never pay for the map lookup or the reflection
+	public static <T extends FlyBehavior & StatelessBehavior> T of(Class<T> type){
+		Object instance = shared.get(type);
+		if (instance == null) {
+			T created = newInstance(type);
+			instance = shared.putIfAbsent(type, created);
+			if (instance == null) {
+				instance = created;
+			}
+		}
+		return type.cast(instance);
+	}
+
+	// reflection only on the first call per class
+	private static <T> T newInstance(Class<T> type){
+		try {
+			return type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("behavior needs a no-arg constructor: " + type, e);
+		}
+	}
+}
+
+// ducks with a stateless behavior ask the registry instead of calling new
+// (YellowDuck share its kind holder, see "Hot swap behavior" below)
+
+public class RubberDuck extends Duck{
+	public RubberDuck(){
+		flyMethodSetter(Behaviors.of(NotFly.class));
+	}
+}
+
+public class RocketDuck extends Duck{
+	public RocketDuck(){
+		flyMethodSetter(new FlyWithRocket()); // stateful, not shared, plain new
+	}
+}
+
+// heap for 1M ducks (64-bit JVM, compressed oops)
+// an object with no field is 12 bytes header -> 16 bytes after alignment
+// before : 1M ducks + 1M behavior objects, behaviors take about 16 MB
+// after : 1M ducks + 2 shared behavior objects (+ rocket ducks still own theirs)
+// so ~16 MB less for yellow and rubber ducks, and 1M less objects for the GC to trace
+// check it with : jcmd <pid> GC.class_histogram, count of FlyWithWings before and after
+
+// notice : a shared behavior MUST stay stateless, if someone add a field to FlyWithWings
+// later, it has to drop the StatelessBehavior marker
+
+
+
+// Data oriented duck population (columns instead of objects)
+
+// with Duck objects, each duck is one object on the heap + a reference to its behavior,
+// a flock update jump from object to object all over the heap
+
+// idea : store the whole population as parallel primitive arrays (columns)
+// 		 row i is duck i, the behavior is a small number (ordinal) into a behavior table
+//		 a flock update is a straight scan over a byte[], no object per duck
+
+public interface QuackBehavior{
+	public void quack();
+}
+
+public class DuckPopulation{
+	// ordinals are stored in a byte, so a table can not be bigger than this
+	static final int MAX_TABLE_SIZE = Byte.MAX_VALUE + 1;
+
+	// behavior tables, the ordinal stored per duck is the index here
+	private final FlyBehavior[] flyTable;
+	private final QuackBehavior[] quackTable;
+
+	// columns
+	private int[] ids;
+	private byte[] flyOrdinals;
+	private byte[] quackOrdinals;
+	private float[] altitudes; // one attribute as example, add more columns the same way
+	private int size;
+
+	public DuckPopulation(FlyBehavior[] flyTable, QuackBehavior[] quackTable, int capacity){
+		if (flyTable.length > MAX_TABLE_SIZE || quackTable.length > MAX_TABLE_SIZE) {
+			throw new IllegalArgumentException("at most " + MAX_TABLE_SIZE + " behaviors per table");
+		}
+		this.flyTable = flyTable;
+		this.quackTable = quackTable;
+		this.ids = new int[capacity];
+		this.flyOrdinals = new byte[capacity];
+		this.quackOrdinals = new byte[capacity];
+		this.altitudes = new float[capacity];
+	}
+
+	// return the row of the new duck
+	public int add(int id, int flyOrdinal, int quackOrdinal){
+		checkOrdinal(flyOrdinal, flyTable.length);
+		checkOrdinal(quackOrdinal, quackTable.length);
+		if (size == ids.length) {
+			grow();
+		}
+		ids[size] = id;
+		flyOrdinals[size] = (byte)flyOrdinal;
+		quackOrdinals[size] = (byte)quackOrdinal;
+		return size++;
+	}
+
+	// the whole flock in one scan, nothing allocated
+	public void flyAll(){
+		FlyBehavior[] table = flyTable;
+		byte[] column = flyOrdinals;
+		for (int i = 0; i < size; i++) {
+			table[column[i]].fly();
+		}
+	}
+
+	public void quackAll(){
+		QuackBehavior[] table = quackTable;
+		byte[] column = quackOrdinals;
+		for (int i = 0; i < size; i++) {
+			table[column[i]].quack();
+		}
+	}
+
+	// change behavior of a whole kind : just rewrite the column, no object touched
+	public void replaceFly(int fromOrdinal, int toOrdinal){
+		checkOrdinal(toOrdinal, flyTable.length);
+		for (int i = 0; i < size; i++) {
+			if (flyOrdinals[i] == fromOrdinal) {
+				flyOrdinals[i] = (byte)toOrdinal;
+			}
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public float getAltitude(int row){
+		checkRow(row);
+		return altitudes[row];
+	}
+
+	public void setAltitude(int row, float altitude){
+		checkRow(row);
+		altitudes[row] = altitude;
+	}
+
+	// bridge back to the object API, for the old callers
+	public Duck duck(int row){
+		return new DuckView(this, row);
+	}
+
+	private void grow(){
+		int capacity = Math.max(16, ids.length * 2);
+		ids = Arrays.copyOf(ids, capacity);
+		flyOrdinals = Arrays.copyOf(flyOrdinals, capacity);
+		quackOrdinals = Arrays.copyOf(quackOrdinals, capacity);
+		altitudes = Arrays.copyOf(altitudes, capacity);
+	}
+
+	private static void checkOrdinal(int ordinal, int tableSize){
+		if (ordinal < 0 || ordinal >= tableSize) {
+			throw new IllegalArgumentException("ordinal " + ordinal + " not in table of " + tableSize);
+		}
+	}
+
+	private void checkRow(int row){
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		}
+	}
+
+	// identity only : a new instance of the same class (eg. a rocket with its own fuel)
+	// is NOT the table instance, it can not be stored as an ordinal
+	int ordinalOf(FlyBehavior f){
+		for (int i = 0; i < flyTable.length; i++) {
+			if (flyTable[i] == f) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("behavior instance not in table, pass the table instance: " + f);
+	}
+
+	// a Duck that does not hold its own state, every call go to the columns
+	static class DuckView extends Duck{
+		private final DuckPopulation population;
+		private final int row;
+
+		DuckView(DuckPopulation population, int row){
+			this.population = population;
+			this.row = row;
+		}
+
+		@Override
+		public FlyBehavior getFlyBehavior(){
+			return population.flyTable[population.flyOrdinals[row]];
+		}
+
+		@Override
+		public void fly(){
+			population.flyTable[population.flyOrdinals[row]].fly();
+		}
+
+		@Override
+		public void flyMethodSetter(FlyBehavior f){
+			population.flyOrdinals[row] = (byte)population.ordinalOf(f);
+		}
+	}
+}
+
+// usage
+// DuckPopulation ducks = new DuckPopulation(
+//		new FlyBehavior[]{ new FlyWithWings(), new NotFly(), new FlyWithRocket() },
+//		new QuackBehavior[]{ new Quack(), new MuteQuack() }, 1000000);
+// int row = ducks.add(42, 0, 0); // a yellow duck
+// ducks.flyAll();
+// ducks.duck(row).fly(); // old API still work
+
+// notice : behaviors in the table are shared by all ducks of that ordinal,
+// so they must be stateless (see StatelessBehavior above), per duck state go into a column
+
+
+
+// Hot swap behavior with many threads
+
+// flyMethodSetter() write a plain field, a worker thread calling fly() may keep
+// the old behavior forever (the JIT can hoist the read out of its loop)
+// we want : a control thread switch ALL ducks of a kind at once,
+// 		    workers see the new behavior right away, with no lock on fly()
+
+// idea : ducks of one kind share ONE holder, the holder keep an immutable
+// 		 (behavior, version) pair in a volatile field (CAS with a VarHandle)
+//		 - a duck with its own behavior keep a plain volatile field, no holder
+//		 - fly() : read own, then the binding of the kind if own is null
+//		 - swap : compareAndSet with the version the caller expect,
+//		   so two control threads can not overwrite each other by accident
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public final class BehaviorHolder{
+	// immutable, so a reader always see a behavior and its own version together
+	public static final class Binding{
+		public final FlyBehavior behavior;
+		public final long version;
+
+		Binding(FlyBehavior behavior, long version){
+			this.behavior = behavior;
+			this.version = version;
+		}
+	}
+
+	// a volatile field + VarHandle for the CAS, no extra AtomicReference object
+	private static final VarHandle CURRENT;
+	static {
+		try {
+			CURRENT = MethodHandles.lookup().findVarHandle(BehaviorHolder.class, "current", Binding.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile Binding current;
+
+	public BehaviorHolder(FlyBehavior initial){
+		current = new Binding(initial, 0);
+	}
+
+	// hot path
+	public FlyBehavior get(){
+		return current.behavior;
+	}
+
+	public Binding binding(){
+		return current;
+	}
+
+	// fail (return false) if someone swapped after the caller read expectedVersion
+	public boolean swap(long expectedVersion, FlyBehavior next){
+		Binding seen = current;
+		if (seen.version != expectedVersion) {
+			return false;
+		}
+		return CURRENT.compareAndSet(this, seen, new Binding(next, expectedVersion + 1));
+	}
+
+	// last writer wins, return the new version
+	public long set(FlyBehavior next){
+		while (true) {
+			Binding seen = current;
+			Binding updated = new Binding(next, seen.version + 1);
+			if (CURRENT.compareAndSet(this, seen, updated)) {
+				return updated.version;
+			}
+		}
+	}
+}
+
+public abstract class Duck{
+	// a duck either share the holder of its kind, or has its own behavior
+	// own behavior is just a volatile field : safe publication, no extra object per duck
+	private final BehaviorHolder kind;
+	private volatile FlyBehavior own;
+
+	// old style duck : the subclass call flyMethodSetter() in its constructor
+	protected Duck(){
+		this.kind = null;
+	}
+
+	protected Duck(BehaviorHolder kind){
+		this.kind = kind;
+	}
+
+	// DuckFlock and the other helpers above use this instead of the old flyBehavior field
+	public FlyBehavior getFlyBehavior(){
+		FlyBehavior f = own;
+		return f != null ? f : kind.get();
+	}
+
+	public void fly(){
+		getFlyBehavior().fly();
+	}
+
+	// change only THIS duck, it leave the shared holder of its kind
+	public void flyMethodSetter(FlyBehavior f){
+		this.own = f;
+	}
+}
+
+// one holder per kind, every YellowDuck share it
+// (this is THE YellowDuck, the holder start with the shared FlyWithWings from the registry)
+
+public class YellowDuck extends Duck{
+	public static final BehaviorHolder KIND = new BehaviorHolder(Behaviors.of(FlyWithWings.class));
+
+	public YellowDuck(){
+		super(KIND);
+	}
+}
+
+// control thread
+// BehaviorHolder.Binding b = YellowDuck.KIND.binding();
+// if (!YellowDuck.KIND.swap(b.version, new FlyWithRocket())) {
+//		// someone else changed it first, read again and decide
+// }
+// flock.regroup(); // for ducks in a DuckFlock, see below
+// -> every YellowDuck fly with rocket on its next fly() call
+
+// DuckFlock and a swap : the YellowDucks stay in the FlyWithWings group, so they fly
+// correctly but through the generic (megamorphic) call, call flock.regroup() after
+// the swap to move them to the right group and get the specialized loop back
+
+// notice : the swap is atomic for the holder, but a fly() that already read
+// the old behavior will finish with it, "next call" is the guarantee, not "this call"
+
+
+
+// Adaptive strategy : choose the cheapest FlyBehavior at runtime
+
+// several FlyBehavior give the same result with different cost, and which one is
+// cheaper depend on the workload (eg. small flock vs huge flock)
+// we do not want to hard code the choice
+
+// idea : ADAPTIVE FlyBehavior, itself is a FlyBehavior (so Duck does not change)
+//		 - every call belong to a workload class (caller tell it, eg. size bucket)
+//		 - 1 of every SAMPLE_RATE calls is timed, and it try the candidates in turn
+//		 - keep a moving average cost per (class, candidate)
+//		 - switch only if another candidate is cheaper by a margin (hysteresis),
+//		   so two candidates with almost the same cost do not flip back and forth
+
+import java.util.function.IntSupplier;
+
+public class AdaptiveFlyBehavior implements FlyBehavior{
+	private static final int SAMPLE_RATE = 64;
+	private static final double ALPHA = 0.1;	// weight of a new sample in the average
+	private static final double MARGIN = 0.8;	// new one must cost < 80% of current
+
+	private final FlyBehavior[] candidates;
+	private final IntSupplier workloadClass;	// return 0 .. classes - 1
+	private final double[][] averageNanos;		// [class][candidate], 0 = not measured yet
+	private final int[] chosen;					// [class] -> candidate index
+	private long calls;
+	private final int[] nextProbe;				// [class] -> next candidate to time
+
+	public AdaptiveFlyBehavior(FlyBehavior[] candidates, int classes, IntSupplier workloadClass){
+		this.candidates = candidates;
+		this.workloadClass = workloadClass;
+		this.averageNanos = new double[classes][candidates.length];
+		this.chosen = new int[classes];
+		this.nextProbe = new int[classes];
+	}
+
+	@Override
+	public void fly(){
+		int c = workloadClass.getAsInt();
+		if (++calls % SAMPLE_RATE != 0) {
+			candidates[chosen[c]].fly(); // not sampled, no timing cost
+			return;
+		}
+
+		// sampled : probe the candidates round robin, so the ones not chosen
+		// still get measured and can win later
+		// one cursor per class, a shared one could hand the same candidate
+		// to a class again and again if the class sequence line up with the sampling
+		int probe = nextProbe[c];
+		nextProbe[c] = (probe + 1) % candidates.length;
+
+		long start = System.nanoTime();
+		candidates[probe].fly();
+		long cost = System.nanoTime() - start;
+
+		double[] averages = averageNanos[c];
+		averages[probe] = averages[probe] == 0 ? cost : averages[probe] + ALPHA * (cost - averages[probe]);
+		reconsider(c, averages);
+	}
+
+	private void reconsider(int c, double[] averages){
+		int best = chosen[c];
+		for (int i = 0; i < averages.length; i++) {
+			if (averages[i] != 0 && (averages[best] == 0 || averages[i] < averages[best] * MARGIN)) {
+				best = i;
+			}
+		}
+		chosen[c] = best;
+	}
+
+	// for monitoring
+	public FlyBehavior current(int workloadClass){
+		return candidates[chosen[workloadClass]];
+	}
+}
+
+// usage : the candidates MUST give the same result, only the cost may differ
+
+// final int[] flockSize = {0};
+// FlyBehavior adaptive = new AdaptiveFlyBehavior(
+//		new FlyBehavior[]{ new FlyWithWings(), new FlyInFormation() }, 3,
+//		new IntSupplier() {
+//			public int getAsInt(){
+//				return flockSize[0] < 100 ? 0 : flockSize[0] < 10000 ? 1 : 2;
+//			}
+//		});
+// duck.flyMethodSetter(adaptive);
+
+// notice :
+// 1. not thread safe, the counters may be a bit off with many threads, but the choice is
+//    still one of the candidates, give each thread its own AdaptiveFlyBehavior if it matters
+// 2. one fly() must be long enough to time, System.nanoTime() is ~20ns
+
+
+
+
+
+
+
+
 
 
 
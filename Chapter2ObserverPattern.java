@@ -333,6 +333,1665 @@ public class CurrentConditionsDisplay implements Observer{
 
 
 
+// Thread safe OBSERVER registry with copy-on-write
+
+// the ArrayList version of WeatherData is not thread safe
+// if thread 1 is inside notifyObservers() loop, and thread 2 call
+// registerObserver() or removeObserver(), the loop may skip one OBSERVER,
+// notify one twice, or throw IndexOutOfBoundsException
+
+// idea : keep the observers in an immutable array snapshot
+// 		 register and remove build a NEW array and swap the reference atomically,
+//		 notify just read the current snapshot and walk it
+//		 no lock, no iterator, no ConcurrentModificationException
+// good when notify is much more often than register/remove (sensor data vs dashboard)
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WeatherData implements Subject{
+	private static final Observer[] EMPTY = new Observer[0];
+
+	// the array inside is NEVER modified after it is published
+	private final AtomicReference<Observer[]> observers = new AtomicReference<Observer[]>(EMPTY);
+	private float temperature;
+	private float humidity;
+	private float pressure;
+
+	public void registerObserver(Observer o){
+		while (true) {
+			Observer[] current = observers.get();
+			Observer[] next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = o;
+
+			// if another thread swapped first, retry with the new snapshot
+			if (observers.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	public void removeObserver(Observer o){
+		while (true) {
+			Observer[] current = observers.get();
+			int i = indexOf(current, o);
+			if (i < 0) {
+				return;
+			}
+
+			Observer[] next;
+			if (current.length == 1) {
+				next = EMPTY;
+			} else {
+				next = new Observer[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+			}
+
+			if (observers.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	public void notifyObservers(){
+		// read the snapshot ONCE, then observers register or remove
+		// during this loop only affect the next notification
+		Observer[] snapshot = observers.get();
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i].update(temperature, humidity, pressure);
+		}
+	}
+
+	public void measurementsChanged(){
+		notifyObservers();
+	}
+
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		this.temperature = temperature;
+		this.humidity = humidity;
+		this.pressure = pressure;
+		measurementsChanged();
+	}
+
+	private static int indexOf(Observer[] array, Observer o){
+		for (int i = 0; i < array.length; i++) {
+			if (array[i].equals(o)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
+
+// cost : every register or remove copy the whole array, O(n)
+// so it is NOT for observers that subscribe and unsubscribe all the time
+
+// java.util.concurrent.CopyOnWriteArrayList is the same idea in JDK,
+// but the for-each loop on it still allocate an iterator every notification
+
+// notice : the three float fields are still written by the producer thread,
+// only ONE thread should call setMeasurement(), the registry is what becomes thread safe
+
+
+
+// Asynchronous dispatch for the OBSERVER update(temp, humidity, pressure)
+
+// in WeatherData, measurementsChanged() call every update() on the producer thread,
+// one slow display (eg. a display write to network) will stall all the sensor data
+
+// idea : put the measurement into a bounded ring buffer for EACH observer,
+// 		 every observer has its own consumer thread, drain the buffer in batch
+//		 and call the normal update(), so the old displays work unchanged
+
+// when the buffer is full, the producer must choose what to do -> backpressure policy
+
+public enum BackpressurePolicy{
+	BLOCK,			// producer wait until consumer make room
+	DROP_OLDEST,	// throw away the oldest reading in the buffer
+	COALESCE		// keep only the latest reading, consumer see the newest value
+}
+
+// one mailbox per OBSERVER
+// readings are stored as 3 parallel float arrays, no object per measurement
+
+public class AsyncObserver implements Observer, Runnable{
+	private final Observer target;
+	private final BackpressurePolicy policy;
+	private final float[] temps;
+	private final float[] humidities;
+	private final float[] pressures;
+	private final int capacity;
+	private int head; // next slot to read
+	private int size;
+	private boolean running = true;
+	private SubjectStats stats; // optional, see the instrumentation below
+
+	public AsyncObserver(Observer target, int capacity, BackpressurePolicy policy){
+		this.target = target;
+		this.policy = policy;
+		this.capacity = policy == BackpressurePolicy.COALESCE ? 1 : capacity;
+		this.temps = new float[this.capacity];
+		this.humidities = new float[this.capacity];
+		this.pressures = new float[this.capacity];
+	}
+
+	// called on the producer thread by WeatherData.notifyObservers()
+	public synchronized void update(float temp, float humidity, float pressure){
+		// stopped : nobody will drain the buffer, drop for every policy
+		if (!running) {
+			countDrop();
+			return;
+		}
+		if (size == capacity) {
+			if (policy == BackpressurePolicy.BLOCK) {
+				while (size == capacity && running) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						countDrop(); // the reading is lost too
+						return;
+					}
+				}
+				// stopped while waiting : the buffer may still be full,
+				// writing now would overrun the unread slots
+				if (!running || size == capacity) {
+					countDrop();
+					return;
+				}
+			} else {
+				// DROP_OLDEST and COALESCE both overwrite the oldest slot,
+				// for COALESCE capacity is 1 so it is always the latest value
+				head = (head + 1) % capacity;
+				size--;
+				if (policy == BackpressurePolicy.COALESCE) {
+					if (stats != null) {
+						stats.coalesced.incrementAndGet();
+					}
+				} else {
+					countDrop();
+				}
+			}
+		}
+		int tail = (head + size) % capacity;
+		temps[tail] = temp;
+		humidities[tail] = humidity;
+		pressures[tail] = pressure;
+		size++;
+		notifyAll();
+	}
+
+	private void countDrop(){
+		if (stats != null) {
+			stats.dropped.incrementAndGet();
+		}
+	}
+
+	// consumer thread, drain everything in the buffer in one batch
+	public void run(){
+		float[] t = new float[capacity];
+		float[] h = new float[capacity];
+		float[] p = new float[capacity];
+		while (true) {
+			int n;
+			synchronized (this) {
+				while (size == 0 && running) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (size == 0) {
+					return; // stopped and nothing left
+				}
+				n = size;
+				for (int i = 0; i < n; i++) {
+					int slot = (head + i) % capacity;
+					t[i] = temps[slot];
+					h[i] = humidities[slot];
+					p[i] = pressures[slot];
+				}
+				head = (head + n) % capacity;
+				size = 0;
+				notifyAll(); // wake up a BLOCKed producer
+			}
+
+			// call the real display OUTSIDE the lock,
+			// a slow display only hold its own consumer thread
+			for (int i = 0; i < n; i++) {
+				target.update(t[i], h[i], p[i]);
+			}
+		}
+	}
+
+	public synchronized void stop(){
+		running = false;
+		notifyAll();
+	}
+
+	// count dropped / coalesced readings into these stats, null = off
+	public synchronized void setStats(SubjectStats stats){
+		this.stats = stats;
+	}
+}
+
+// usage : WeatherData and CurrentConditionDisplay are not changed at all,
+// the async mode is just a wrapper OBSERVER (it is a decorator of OBSERVER)
+
+public class AsyncWeatherStation {
+	public static void main(String[] args) {
+		WeatherData weatherData = new WeatherData();
+
+		// the display register itself in constructor,
+		// swap it out and register the async wrapper instead
+		CurrentConditionDisplay display = new CurrentConditionDisplay(weatherData);
+		weatherData.removeObserver(display);
+
+		AsyncObserver async = new AsyncObserver(display, 1024, BackpressurePolicy.DROP_OLDEST);
+		new Thread(async, "display-consumer").start();
+		weatherData.registerObserver(async);
+
+		weatherData.setMeasurement(80, 65, 30.4f); // return at once, display run later
+		async.stop();
+	}
+}
+
+// notice : with async dispatch the display see the data LATER than setMeasurement()
+// and for DROP_OLDEST / COALESCE it may not see every reading
+
+
+
+// Coalescing notification for the pull model (java.util.Observable)
+
+// with the built-in Observable, every setMeasurement() call setChanged() and notifyObservers(),
+// and every pull OBSERVER call all the getters again
+// when sensor send data in burst, most of these updates are replaced by the next one at once
+
+// idea : setMeasurement() only save the value and mark "dirty",
+// 		 a timer check the mark once per tick, and notify ONE time if dirty
+//		 OBSERVER pull the getters, so it always get the newest value
+//		 -> at most one wake up per OBSERVER per tick, no matter how many readings came in
+
+import java.util.Observable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CoalescingWeatherData extends Observable{
+	// one reading is one immutable object, published by ONE volatile write,
+	// so a reader never mix the fields of two readings
+	public static final class Reading{
+		public final float temperature;
+		public final float humidity;
+		public final float pressure;
+
+		Reading(float temperature, float humidity, float pressure){
+			this.temperature = temperature;
+			this.humidity = humidity;
+			this.pressure = pressure;
+		}
+	}
+
+	private volatile Reading reading = new Reading(0, 0, 0);
+
+	// readings since the last flush, > 0 means "dirty"
+	private final AtomicLong pending = new AtomicLong();
+	private volatile SubjectStats stats; // optional, see the instrumentation below
+	private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+	public CoalescingWeatherData(long tickMillis){
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run(){
+				flush();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		this.reading = new Reading(temperature, humidity, pressure);
+
+		// set the mark AFTER the reading, so the tick that see the mark
+		// also see the reading
+		pending.incrementAndGet();
+	}
+
+	// count merged readings into these stats, null = off
+	public void setStats(SubjectStats stats){
+		this.stats = stats;
+	}
+
+	// called by the tick thread
+	void flush(){
+		// clear the mark BEFORE notify, a reading that come in while
+		// observers are pulling set the mark again and go to next tick,
+		// so the newest reading is never lost
+		long readings = pending.getAndSet(0);
+		if (readings > 0) {
+			// all readings but the newest one were merged into this notification
+			SubjectStats s = stats;
+			if (s != null && readings > 1) {
+				s.coalesced.addAndGet(readings - 1);
+			}
+			setChanged();
+			notifyObservers(); // pull model, no args
+		}
+	}
+
+	// wait for a running tick to end first, else the last flush and
+	// that tick may notify at the same time
+	public void shutdown() throws InterruptedException{
+		ticker.shutdown();
+		ticker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		flush(); // deliver the last reading
+	}
+
+	// pull the whole reading at once, the fields always belong together
+	public Reading getReading(){
+		return this.reading;
+	}
+
+	public float getTemperature(){
+		return this.reading.temperature;
+	}
+	public float getHumidity(){
+		return this.reading.humidity;
+	}
+	public float getPressure(){
+		return this.reading.pressure;
+	}
+}
+
+// OBSERVER pull ONE reading, then use its fields
+// the WeatherData branch is kept, so the same display still work with the book's subject
+
+public class CurrentConditionsDisplay implements Observer{
+	private float temperature;
+	private float humidity;
+
+	public CurrentConditionsDisplay(Observable observable){
+		observable.addObserver(this);
+	}
+
+	@Override
+	public void update(Observable obs, Object args){
+		if (obs instanceof CoalescingWeatherData) {
+			CoalescingWeatherData.Reading r = ((CoalescingWeatherData)obs).getReading();
+			this.temperature = r.temperature;
+			this.humidity = r.humidity;
+			display();
+		} else if (obs instanceof WeatherData) {
+			WeatherData weatherData = (WeatherData)obs;
+			this.temperature = weatherData.getTemperature();
+			this.humidity = weatherData.getHumidity();
+			display();
+		}
+	}
+
+	public void display(){
+		System.out.println("Current conditions: " + temperature + " F degrees and" + "humidity + %" + humidity);
+	}
+}
+
+// trade off : the notification come up to one tick LATER,
+// and one Reading is allocated per setMeasurement() (small and short lived)
+// the single getters are still there, but two getter calls may see two readings
+
+
+
+// Allocation free measurement event
+
+// the push OBSERVER is fixed to update(float, float, float), adding one field change every OBSERVER
+// the Observable version pass Object args, so a float must be boxed (or wrapped) every notification
+
+// idea : FLYWEIGHT event over a float[] slab
+// 		 the SUBJECT own one event object and one slab, and reuse it every notification
+//		 OBSERVER read the values by getter, only valid INSIDE onMeasurement()
+
+public final class MeasurementEvent{
+	// field offsets inside one record
+	static final int TEMPERATURE = 0;
+	static final int HUMIDITY = 1;
+	static final int PRESSURE = 2;
+	static final int WIDTH = 3;
+
+	private float[] slab;
+	private int base;
+
+	// point the flyweight to one record, no copy
+	void wrap(float[] slab, int record){
+		this.slab = slab;
+		this.base = record * WIDTH;
+	}
+
+	public float getTemperature(){
+		return slab[base + TEMPERATURE];
+	}
+	public float getHumidity(){
+		return slab[base + HUMIDITY];
+	}
+	public float getPressure(){
+		return slab[base + PRESSURE];
+	}
+}
+
+public interface MeasurementObserver{
+	// do NOT keep the event reference after return, it will be reused
+	public void onMeasurement(MeasurementEvent event);
+}
+
+public class MeasurementChannel{
+	private static final MeasurementObserver[] EMPTY = new MeasurementObserver[0];
+
+	private final float[] slab = new float[MeasurementEvent.WIDTH];
+	private final MeasurementEvent event = new MeasurementEvent();
+
+	// same copy-on-write registry as the thread safe WeatherData above
+	private final AtomicReference<MeasurementObserver[]> observers = new AtomicReference<MeasurementObserver[]>(EMPTY);
+
+	public MeasurementChannel(){
+		event.wrap(slab, 0);
+	}
+
+	public void registerObserver(MeasurementObserver o){
+		while (true) {
+			MeasurementObserver[] current = observers.get();
+			MeasurementObserver[] next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = o;
+			if (observers.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	public void removeObserver(MeasurementObserver o){
+		while (true) {
+			MeasurementObserver[] current = observers.get();
+			int i = -1;
+			for (int j = 0; j < current.length; j++) {
+				if (current[j].equals(o)) {
+					i = j;
+					break;
+				}
+			}
+			if (i < 0) {
+				return;
+			}
+
+			MeasurementObserver[] next = current.length == 1 ? EMPTY : new MeasurementObserver[current.length - 1];
+			System.arraycopy(current, 0, next, 0, i);
+			System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+
+			if (observers.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	// the hot path : write 3 floats, walk an array, nothing allocated
+	// (only ONE producer thread, the slab is shared with the event)
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		slab[MeasurementEvent.TEMPERATURE] = temperature;
+		slab[MeasurementEvent.HUMIDITY] = humidity;
+		slab[MeasurementEvent.PRESSURE] = pressure;
+
+		MeasurementObserver[] snapshot = observers.get();
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i].onMeasurement(event);
+		}
+	}
+}
+
+// new field? add an offset and a getter, old OBSERVER does not change
+
+
+// JMH comparison sketch (run with the jmh maven archetype)
+// - pushArrayList : WeatherData (ArrayList + update(float, float, float))
+// - pullObservable : java.util.Observable version, pull by getters
+// - flyweight : MeasurementChannel
+// all with 8 observers that sum the values into a Blackhole
+// run with -prof gc to compare gc.alloc.rate.norm (bytes per notification)
+
+// the Observable WeatherData of the book, renamed so both versions fit in one benchmark
+public class ObservableWeatherData extends java.util.Observable{
+	private float temperature;
+	private float humidity;
+	private float pressure;
+
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		this.temperature = temperature;
+		this.humidity = humidity;
+		this.pressure = pressure;
+		setChanged();
+		notifyObservers();
+	}
+
+	public float getTemperature(){
+		return this.temperature;
+	}
+	public float getHumidity(){
+		return this.humidity;
+	}
+	public float getPressure(){
+		return this.pressure;
+	}
+}
+
+// the book's ArrayList SUBJECT under its own name, WeatherData is the
+// copy-on-write one since the thread safe registry above
+
+import java.util.ArrayList;
+
+public class ArrayListWeatherData implements Subject{
+	private final ArrayList<Observer> observers = new ArrayList<Observer>();
+	private float temperature;
+	private float humidity;
+	private float pressure;
+
+	public void registerObserver(Observer o){
+		observers.add(o);
+	}
+
+	public void removeObserver(Observer o){
+		observers.remove(o);
+	}
+
+	public void notifyObservers(){
+		for (int i = 0; i < observers.size(); i++) {
+			observers.get(i).update(temperature, humidity, pressure);
+		}
+	}
+
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		this.temperature = temperature;
+		this.humidity = humidity;
+		this.pressure = pressure;
+		notifyObservers();
+	}
+}
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+public class MeasurementBenchmark{
+	static final int OBSERVERS = 8;
+
+	ArrayListWeatherData pushArrayList;
+	ObservableWeatherData pullObservable;
+	MeasurementChannel flyweight;
+	float t;
+
+	@Setup
+	public void setup(final Blackhole bh){
+		pushArrayList = new ArrayListWeatherData();
+		pullObservable = new ObservableWeatherData();
+		flyweight = new MeasurementChannel();
+
+		for (int i = 0; i < OBSERVERS; i++) {
+			pushArrayList.registerObserver(new Observer() {
+				public void update(float temperature, float humidity, float pressure){
+					bh.consume(temperature + humidity + pressure);
+				}
+			});
+
+			pullObservable.addObserver(new java.util.Observer() {
+				public void update(java.util.Observable o, Object args){
+					ObservableWeatherData w = (ObservableWeatherData)o;
+					bh.consume(w.getTemperature() + w.getHumidity() + w.getPressure());
+				}
+			});
+
+			flyweight.registerObserver(new MeasurementObserver() {
+				public void onMeasurement(MeasurementEvent e){
+					bh.consume(e.getTemperature() + e.getHumidity() + e.getPressure());
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public void pushArrayList(){
+		pushArrayList.setMeasurement(t++, 65, 30.4f);
+	}
+
+	@Benchmark
+	public void pullObservable(){
+		pullObservable.setMeasurement(t++, 65, 30.4f);
+	}
+
+	@Benchmark
+	public void flyweight(){
+		flyweight.setMeasurement(t++, 65, 30.4f);
+	}
+}
+
+
+
+// Windowed statistics OBSERVER (min / max / avg / percentile)
+
+// the StatisticsDisplay in the book keep all readings and compute again on every update()
+// that is O(n) per update and memory grows forever
+
+// idea : only keep the last N readings (sliding window) and update the stats
+// 		 in O(1) per sample
+//		 - avg : running sum, add the new one and subtract the one leaving the window
+//		 - min / max : monotonic deque of indexes, amortized O(1)
+//		 - percentile : fixed bucket histogram, +1 for new sample, -1 for the leaving one,
+//		   answer is approximate (bucket width), query walk the buckets
+
+public class WindowedStatistic{
+	private final float[] window; // ring buffer of the last N samples
+	private long count;			  // total samples seen, also the ring position
+	private double sum;
+
+	// deque of sample positions, values are increasing (for min) / decreasing (for max)
+	private final long[] minDeque;
+	private final long[] maxDeque;
+	// long : they only grow, an int would turn negative after 2^31 samples
+	private long minHead, minTail, maxHead, maxTail;
+
+	private final float low;
+	private final float bucketWidth;
+	private final int[] buckets;
+
+	public WindowedStatistic(int windowSize, float low, float high, int bucketCount){
+		this.window = new float[windowSize];
+		this.minDeque = new long[windowSize];
+		this.maxDeque = new long[windowSize];
+		this.low = low;
+		this.bucketWidth = (high - low) / bucketCount;
+		this.buckets = new int[bucketCount];
+	}
+
+	public void add(float value){
+		int size = window.length;
+		int slot = (int)(count % size);
+
+		if (count >= size) {
+			// the oldest sample leave the window
+			float old = window[slot];
+			sum -= old;
+			buckets[bucketOf(old)]--;
+			long leaving = count - size;
+			if (minDeque[(int)(minHead % size)] == leaving) {
+				minHead++;
+			}
+			if (maxDeque[(int)(maxHead % size)] == leaving) {
+				maxHead++;
+			}
+		}
+
+		window[slot] = value;
+		sum += value;
+		buckets[bucketOf(value)]++;
+
+		// drop the tail entries that can never be the min / max again
+		while (minTail > minHead && window[(int)(minDeque[(int)((minTail - 1) % size)] % size)] >= value) {
+			minTail--;
+		}
+		minDeque[(int)(minTail++ % size)] = count;
+		while (maxTail > maxHead && window[(int)(maxDeque[(int)((maxTail - 1) % size)] % size)] <= value) {
+			maxTail--;
+		}
+		maxDeque[(int)(maxTail++ % size)] = count;
+
+		count++;
+	}
+
+	public int size(){
+		return (int)Math.min(count, window.length);
+	}
+
+	public float getMin(){
+		return window[(int)(minDeque[(int)(minHead % window.length)] % window.length)];
+	}
+
+	public float getMax(){
+		return window[(int)(maxDeque[(int)(maxHead % window.length)] % window.length)];
+	}
+
+	public float getAverage(){
+		return (float)(sum / size());
+	}
+
+	// p in [0, 1], result is the upper edge of the bucket, error <= bucketWidth
+	public float getPercentile(double p){
+		int rank = (int)Math.ceil(p * size());
+		int seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return low + (i + 1) * bucketWidth;
+			}
+		}
+		return low + buckets.length * bucketWidth;
+	}
+
+	private int bucketOf(float value){
+		// values out of range go to the first or last bucket
+		int i = (int)((value - low) / bucketWidth);
+		return Math.max(0, Math.min(buckets.length - 1, i));
+	}
+}
+
+// OBSERVER for weather station, register like any other display
+
+public class StatisticsDisplay implements Observer,DisplayElement{
+	private final WindowedStatistic temperature = new WindowedStatistic(600, -40f, 140f, 180);
+	private final WindowedStatistic humidity = new WindowedStatistic(600, 0f, 100f, 100);
+	private final WindowedStatistic pressure = new WindowedStatistic(600, 25f, 35f, 100);
+	private Subject weatherData;
+
+	public StatisticsDisplay(Subject weatherData){
+		this.weatherData = weatherData;
+		weatherData.registerObserver(this);
+	}
+
+	public void update(float temperature, float humidity, float pressure){
+		this.temperature.add(temperature);
+		this.humidity.add(humidity);
+		this.pressure.add(pressure);
+	}
+
+	public void display(){
+		System.out.println("Avg/Max/Min temperature = " + temperature.getAverage()
+			+ "/" + temperature.getMax() + "/" + temperature.getMin()
+			+ ", p95 = " + temperature.getPercentile(0.95));
+	}
+}
+
+// notice : update() does not call display() here, printing every sample
+// is much more expensive than the statistics, call display() from a timer instead
+
+// memory is fixed : window + 2 deques + buckets, no matter how long it runs
+
+
+
+// Field subscription : OBSERVER only get the field it care about
+
+// every OBSERVER of WeatherData get all 3 values on every change,
+// a temperature only display still get called when only pressure changed
+// with 10k OBSERVERS, most of the update() calls just throw the data away
+
+// idea : OBSERVER subscribe to ONE field with a dead band
+//		 "tell me when temperature moved more than 0.5 from what you last told me"
+// 		 every subscription is a range [last - delta, last + delta],
+//		 keep 2 heaps per field : lowest upper bound, highest lower bound
+//		 a new value only pop the subscriptions whose range it left
+//		 -> cost is O(fired * log n), not O(n)
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+public enum Field{
+	TEMPERATURE, HUMIDITY, PRESSURE
+}
+
+public interface FieldObserver{
+	public void update(Field field, float value);
+}
+
+public class FieldSubscription{
+	final FieldObserver observer;
+	final float delta;
+	float last;
+	int version; // heap entries with an old version are stale, skip them
+	boolean active = true;
+
+	FieldSubscription(FieldObserver observer, float delta, float last){
+		this.observer = observer;
+		this.delta = delta;
+		this.last = last;
+	}
+}
+
+// one heap entry, the bound is copied so the heap order never change under it
+public class Bound{
+	final FieldSubscription subscription;
+	final float value;
+	final int version;
+
+	Bound(FieldSubscription subscription, float value){
+		this.subscription = subscription;
+		this.value = value;
+		this.version = subscription.version;
+	}
+
+	boolean isStale(){
+		return !subscription.active || version != subscription.version;
+	}
+}
+
+public class FieldIndex{
+	private final PriorityQueue<Bound> uppers = new PriorityQueue<Bound>(11, new Comparator<Bound>() {
+		public int compare(Bound a, Bound b){
+			return Float.compare(a.value, b.value); // lowest upper bound first
+		}
+	});
+	private final PriorityQueue<Bound> lowers = new PriorityQueue<Bound>(11, new Comparator<Bound>() {
+		public int compare(Bound a, Bound b){
+			return Float.compare(b.value, a.value); // highest lower bound first
+		}
+	});
+	private final ArrayList<FieldSubscription> fired = new ArrayList<FieldSubscription>();
+	private float current;
+	private int live; // active subscriptions, each one has exactly 2 live bounds
+
+	FieldSubscription subscribe(FieldObserver o, float delta){
+		FieldSubscription s = new FieldSubscription(o, delta, current);
+		index(s);
+		live++;
+		return s;
+	}
+
+	void unsubscribe(FieldSubscription s){
+		if (!s.active) {
+			return;
+		}
+		s.active = false; // removed lazily from the heaps
+		live--;
+		compactIfNeeded();
+	}
+
+	void publish(Field field, float value){
+		current = value;
+
+		// value above the upper bound
+		while (!uppers.isEmpty() && (uppers.peek().isStale() || uppers.peek().value < value)) {
+			Bound b = uppers.poll();
+			if (!b.isStale()) {
+				fire(b.subscription);
+			}
+		}
+		// value below the lower bound
+		while (!lowers.isEmpty() && (lowers.peek().isStale() || lowers.peek().value > value)) {
+			Bound b = lowers.poll();
+			if (!b.isStale()) {
+				fire(b.subscription);
+			}
+		}
+
+		// notify and put back with the new range around the new value
+		for (int i = 0; i < fired.size(); i++) {
+			FieldSubscription s = fired.get(i);
+			s.last = value;
+			index(s);
+			s.observer.update(field, value);
+		}
+		fired.clear();
+		compactIfNeeded();
+	}
+
+	// a stale bound only leave a heap when it reach the top, when the value drift
+	// one way the stale ones pile up in the other heap
+	// so rebuild both heaps once there are more stale bounds than live ones
+	// (amortized O(1) per fire, like growing an ArrayList)
+	private void compactIfNeeded(){
+		int stale = uppers.size() + lowers.size() - 2 * live;
+		if (stale > 2 * live) {
+			rebuild(uppers);
+			rebuild(lowers);
+		}
+	}
+
+	private static void rebuild(PriorityQueue<Bound> heap){
+		ArrayList<Bound> keep = new ArrayList<Bound>(heap.size());
+		for (Bound b : heap) {
+			if (!b.isStale()) {
+				keep.add(b);
+			}
+		}
+		heap.clear();
+		heap.addAll(keep);
+	}
+
+	private void fire(FieldSubscription s){
+		s.version++; // the entry left in the other heap is stale now
+		fired.add(s);
+	}
+
+	private void index(FieldSubscription s){
+		uppers.add(new Bound(s, s.last + s.delta));
+		lowers.add(new Bound(s, s.last - s.delta));
+	}
+}
+
+public class PartitionedWeatherData{
+	private final FieldIndex[] indexes = new FieldIndex[Field.values().length];
+
+	public PartitionedWeatherData(){
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = new FieldIndex();
+		}
+	}
+
+	// delta 0 means "any change"
+	public FieldSubscription subscribe(Field field, float delta, FieldObserver o){
+		return indexes[field.ordinal()].subscribe(o, delta);
+	}
+
+	public void unsubscribe(Field field, FieldSubscription s){
+		indexes[field.ordinal()].unsubscribe(s);
+	}
+
+	// every predicate is checked once per measurement, by the index, not by the OBSERVER
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		indexes[Field.TEMPERATURE.ordinal()].publish(Field.TEMPERATURE, temperature);
+		indexes[Field.HUMIDITY.ordinal()].publish(Field.HUMIDITY, humidity);
+		indexes[Field.PRESSURE.ordinal()].publish(Field.PRESSURE, pressure);
+	}
+}
+
+// the old Observer can still be used, wrap it into a FieldObserver (ADAPTER),
+// but then it get only one field per call
+
+// notice : fired subscriptions allocate 2 new Bound entries, it is the price of
+// the index, the ones that do not fire cost nothing
+// the heaps hold at most ~2x the live bounds, stale ones are dropped by compactIfNeeded()
+
+
+// JMH comparison sketch : 10k observers, 1% of them on a 0.1 dead band, the rest on 5.0,
+// input is a random walk of temperature with step 0.2
+// - linear : WeatherData.notifyObservers(), every observer check its own predicate
+// - indexed : PartitionedWeatherData, only the fired observers are called
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+public class FieldSubscriptionBenchmark{
+	@Param({"10000"})
+	int observers;
+
+	WeatherData linear;
+	PartitionedWeatherData indexed;
+	float temperature;
+
+	// the linear version : every observer get every update and check its own dead band
+	static class DeadBandObserver implements Observer{
+		final float delta;
+		final Blackhole bh;
+		float last;
+
+		DeadBandObserver(float delta, Blackhole bh){
+			this.delta = delta;
+			this.bh = bh;
+		}
+
+		public void update(float temperature, float humidity, float pressure){
+			if (Math.abs(temperature - last) > delta) {
+				last = temperature;
+				bh.consume(temperature);
+			}
+		}
+	}
+
+	@Setup
+	public void setup(final Blackhole bh){
+		linear = new WeatherData();
+		indexed = new PartitionedWeatherData();
+		FieldObserver consumer = new FieldObserver() {
+			public void update(Field field, float value){
+				bh.consume(value);
+			}
+		};
+
+		for (int i = 0; i < observers; i++) {
+			float delta = i % 100 == 0 ? 0.1f : 5.0f; // 1% sensitive, the rest coarse
+			linear.registerObserver(new DeadBandObserver(delta, bh));
+			indexed.subscribe(Field.TEMPERATURE, delta, consumer);
+		}
+	}
+
+	@Benchmark
+	public void linear(){
+		linear.setMeasurement(temperature += step(), 65, 30.4f);
+	}
+
+	@Benchmark
+	public void indexed(){
+		indexed.setMeasurement(temperature += step(), 65, 30.4f);
+	}
+
+	float step(){
+		return ThreadLocalRandom.current().nextBoolean() ? 0.2f : -0.2f;
+	}
+}
+
+
+
+// Many stations : sharded WeatherData hub
+
+// one WeatherData per station, but all setMeasurement() calls go through one thread
+// we want : different stations notify in parallel, same station keep its order
+
+// idea : fixed number of worker threads, each one is a single thread executor,
+// 		 station id decide the worker (shard), so all calls of one station run
+//		 on the same thread, one by one, in order
+//		 -> no lock needed inside WeatherData, it is only touched by its own shard
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class WeatherHub{
+	private final ExecutorService[] shards;
+	private final ConcurrentHashMap<Integer, WeatherData> stations = new ConcurrentHashMap<Integer, WeatherData>();
+
+	public WeatherHub(int shardCount){
+		shards = new ExecutorService[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	// only the shard thread of the station may touch it, so this stay private
+	private WeatherData station(int stationId){
+		WeatherData station = stations.get(stationId);
+		if (station == null) {
+			WeatherData created = new WeatherData();
+			station = stations.putIfAbsent(stationId, created);
+			if (station == null) {
+				station = created;
+			}
+		}
+		return station;
+	}
+
+	// register / remove also go through the shard, so they do not race with notify
+	public void registerObserver(final int stationId, final Observer o){
+		shardOf(stationId).execute(new Runnable() {
+			public void run(){
+				station(stationId).registerObserver(o);
+			}
+		});
+	}
+
+	public void removeObserver(final int stationId, final Observer o){
+		shardOf(stationId).execute(new Runnable() {
+			public void run(){
+				station(stationId).removeObserver(o);
+			}
+		});
+	}
+
+	public void setMeasurement(final int stationId, final float temperature, final float humidity, final float pressure){
+		shardOf(stationId).execute(new Runnable() {
+			public void run(){
+				station(stationId).setMeasurement(temperature, humidity, pressure);
+			}
+		});
+	}
+
+	// wait until every call submitted before this one has run
+	public void drain() throws InterruptedException{
+		final CountDownLatch done = new CountDownLatch(shards.length);
+		for (ExecutorService shard : shards) {
+			shard.execute(new Runnable() {
+				public void run(){
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+	}
+
+	public void shutdown() throws InterruptedException{
+		for (ExecutorService shard : shards) {
+			shard.shutdown();
+		}
+		for (ExecutorService shard : shards) {
+			shard.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private ExecutorService shardOf(int stationId){
+		// spread the bits, station ids are often sequential
+		int h = stationId * 0x9E3779B9;
+		return shards[(h >>> 1) % shards.length];
+	}
+}
+
+// usage : new WeatherHub(Runtime.getRuntime().availableProcessors())
+
+// notice :
+// 1. an OBSERVER registered on 2 stations may be called from 2 threads at the same time,
+//    it must be thread safe (or register one OBSERVER per station)
+// 2. one very busy station still run on ONE core, sharding only help when there are many stations
+// 3. each setMeasurement() allocate one Runnable, fine for normal rate,
+//    for very high rate use a ring buffer per shard (see AsyncObserver above)
+
+
+// throughput : N stations, each one with 4 observers doing ~1 microsecond of work
+// - baseline : one thread calling WeatherData.setMeasurement() for every station
+// - hub : WeatherHub with 8 shards, same input, measure until all shards are drained
+// expected to scale up to number of cores when stations >> shards
+// and observer work dominates the hand off cost
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+public class WeatherHubBenchmark{
+	static final int OBSERVERS_PER_STATION = 4;
+	static final int SHARDS = 8;
+	static final long WORK_TOKENS = 250; // about 1 microsecond
+
+	@Param({"1000"})
+	int stations;
+
+	WeatherData[] baseline;
+	WeatherHub hub;
+	float t;
+
+	@Setup
+	public void setup() throws InterruptedException{
+		Observer work = new Observer() {
+			public void update(float temperature, float humidity, float pressure){
+				Blackhole.consumeCPU(WORK_TOKENS);
+			}
+		};
+
+		baseline = new WeatherData[stations];
+		hub = new WeatherHub(SHARDS);
+		for (int s = 0; s < stations; s++) {
+			baseline[s] = new WeatherData();
+			for (int i = 0; i < OBSERVERS_PER_STATION; i++) {
+				baseline[s].registerObserver(work);
+				hub.registerObserver(s, work);
+			}
+		}
+		hub.drain();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException{
+		hub.shutdown();
+	}
+
+	// one reading per station per invocation, score / stations = readings per second
+	@Benchmark
+	public void baseline(){
+		t++;
+		for (int s = 0; s < stations; s++) {
+			baseline[s].setMeasurement(t, 65, 30.4f);
+		}
+	}
+
+	@Benchmark
+	public void hub() throws InterruptedException{
+		t++;
+		for (int s = 0; s < stations; s++) {
+			hub.setMeasurement(s, t, 65, 30.4f);
+		}
+		hub.drain();
+	}
+}
+
+
+
+// Measurement journal : replay for late OBSERVER
+
+// an OBSERVER registered now see nothing until the next setMeasurement()
+// a new display want to catch up with what happened before
+
+// idea : SUBJECT write every measurement into an append only file first,
+// 		 fixed width binary record, file is memory mapped
+//		 record n is at offset n * RECORD_SIZE, so replay from any record
+//		 is just reading the mapped buffer, no parsing, no copy into byte[]
+
+// record layout (20 bytes)
+// | timestamp millis (long) | temperature (float) | humidity (float) | pressure (float) |
+// the timestamp is written LAST, a record with timestamp 0 was never completed
+// (a new file is zero filled), so after a restart the written records are
+// exactly the ones before the first timestamp 0
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MeasurementJournal{
+	static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long capacity; // in records
+	private long size;			 // records written
+
+	public MeasurementJournal(String path, long capacity) throws IOException{
+		// one mapping is limited to 2GB, roll to a new file (segment) after that
+		if (capacity <= 0 || capacity > Integer.MAX_VALUE / RECORD_SIZE) {
+			throw new IllegalArgumentException("capacity must be 1 .. "
+				+ (Integer.MAX_VALUE / RECORD_SIZE) + " records per file: " + capacity);
+		}
+		this.capacity = capacity;
+		this.channel = new RandomAccessFile(path, "rw").getChannel();
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity * RECORD_SIZE);
+		this.size = recover();
+	}
+
+	// records are a prefix of the file, so binary search the first empty one
+	private long recover(){
+		long low = 0;
+		long high = capacity;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (buffer.getLong((int)(mid * RECORD_SIZE)) != 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public boolean isFull(){
+		return size == capacity;
+	}
+
+	public long append(float temperature, float humidity, float pressure){
+		if (size == capacity) {
+			throw new IllegalStateException("journal is full, roll a new segment");
+		}
+		int base = (int)(size * RECORD_SIZE);
+
+		// absolute put, the buffer position is never moved
+		// values first, timestamp last : it mark the record as complete
+		buffer.putFloat(base + 8, temperature);
+		buffer.putFloat(base + 12, humidity);
+		buffer.putFloat(base + 16, pressure);
+		buffer.putLong(base, System.currentTimeMillis());
+		return size++;
+	}
+
+	// read straight from the mapped pages
+	public long replay(long fromRecord, Observer o){
+		long end = size;
+		for (long n = fromRecord; n < end; n++) {
+			int base = (int)(n * RECORD_SIZE);
+			o.update(buffer.getFloat(base + 8), buffer.getFloat(base + 12), buffer.getFloat(base + 16));
+		}
+		return end;
+	}
+
+	public long size(){
+		return size;
+	}
+
+	// force() write the dirty pages to disk, call it on a timer, not every record
+	public void flush(){
+		buffer.force();
+	}
+
+	public void close() throws IOException{
+		buffer.force();
+		channel.close();
+	}
+}
+
+// SUBJECT with journal, the rest of WeatherData does not change
+
+public class JournaledWeatherData extends WeatherData{
+	private final MeasurementJournal journal;
+	private long unjournaled; // readings notified but not logged because the journal was full
+
+	public JournaledWeatherData(MeasurementJournal journal){
+		this.journal = journal;
+	}
+
+	@Override
+	public void setMeasurement(float temperature, float humidity, float pressure){
+		// log first, then notify
+		// a full journal only lose the replay, live observers still get the reading
+		if (journal.isFull()) {
+			unjournaled++;
+		} else {
+			journal.append(temperature, humidity, pressure);
+		}
+		super.setMeasurement(temperature, humidity, pressure);
+	}
+
+	// > 0 means it is time to roll a new segment
+	public long getUnjournaled(){
+		return unjournaled;
+	}
+
+	// catch up from an offset, then get the live updates
+	// must be called on the same thread as setMeasurement(), otherwise
+	// a reading between replay and register may be lost
+	public void registerObserver(Observer o, long fromRecord){
+		journal.replay(fromRecord, o);
+		registerObserver(o);
+	}
+}
+
+// usage
+// MeasurementJournal journal = new MeasurementJournal("station-1.journal", 10000000);
+// JournaledWeatherData weatherData = new JournaledWeatherData(journal);
+// weatherData.registerObserver(lateDisplay, 0); // replay everything, then live
+// after a restart, new MeasurementJournal(...) on the same file continue after the last record
+
+
+
+// Reactive Streams bridge : Flow.Publisher over WeatherData
+
+// Subject / Observer has no "demand", SUBJECT push as fast as it can
+// java.util.concurrent.Flow (Java 9) add it : subscriber call request(n),
+// publisher send at most n items, then wait for more request
+
+// idea : an OBSERVER that is also a Flow.Publisher (ADAPTER)
+// 		 register it on WeatherData like any display,
+//		 it hand each reading to a SubmissionPublisher, which keep one buffer per
+//		 subscriber and only deliver what the subscriber requested
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+// Flow items are kept in a buffer, so they must be immutable value objects
+public final class Measurement{
+	public final float temperature;
+	public final float humidity;
+	public final float pressure;
+
+	public Measurement(float temperature, float humidity, float pressure){
+		this.temperature = temperature;
+		this.humidity = humidity;
+		this.pressure = pressure;
+	}
+}
+
+public class WeatherPublisher implements Observer, Flow.Publisher<Measurement>, AutoCloseable{
+	private final SubmissionPublisher<Measurement> publisher;
+	private final boolean dropWhenFull;
+	private final Subject weatherData;
+
+	// default : common pool, buffer of Flow.defaultBufferSize() per subscriber,
+	// producer BLOCK when a subscriber buffer is full
+	public WeatherPublisher(Subject weatherData){
+		this(weatherData, ForkJoinPool.commonPool(), Flow.defaultBufferSize(), false);
+	}
+
+	public WeatherPublisher(Subject weatherData, Executor executor, int bufferSize, boolean dropWhenFull){
+		this.publisher = new SubmissionPublisher<Measurement>(executor, bufferSize);
+		this.dropWhenFull = dropWhenFull;
+		this.weatherData = weatherData;
+		weatherData.registerObserver(this);
+	}
+
+	public void update(float temperature, float humidity, float pressure){
+		// a notifyObservers() that took its snapshot before close() still call us
+		if (publisher.isClosed()) {
+			return;
+		}
+		Measurement m = new Measurement(temperature, humidity, pressure);
+		try {
+			if (dropWhenFull) {
+				// offer() never block, null handler = drop the item for the slow subscriber
+				publisher.offer(m, null);
+			} else {
+				// submit() block the producer until every subscriber has room
+				publisher.submit(m);
+			}
+		} catch (IllegalStateException closed) {
+			// close() ran between the check and the submit, the reading is dropped
+		}
+	}
+
+	public void subscribe(Flow.Subscriber<? super Measurement> subscriber){
+		publisher.subscribe(subscriber);
+	}
+
+	public void close(){
+		// unregister FIRST, a closed publisher throw on submit() / offer(),
+		// and the exception would stop notifyObservers() for the observers after us
+		weatherData.removeObserver(this);
+		publisher.close(); // send onComplete() to all subscribers
+	}
+}
+
+// a downstream stage that pull at its own rate
+
+public class SlowStage implements Flow.Subscriber<Measurement>{
+	private Flow.Subscription subscription;
+
+	public void onSubscribe(Flow.Subscription subscription){
+		this.subscription = subscription;
+		subscription.request(1); // ask for ONE item
+	}
+
+	public void onNext(Measurement m){
+		// slow processing ...
+		subscription.request(1); // ready for the next one
+	}
+
+	public void onError(Throwable t){
+		t.printStackTrace();
+	}
+
+	public void onComplete(){
+	}
+}
+
+// usage
+// WeatherData weatherData = new WeatherData();
+// WeatherPublisher publisher = new WeatherPublisher(weatherData);
+// publisher.subscribe(new SlowStage());
+// weatherData.setMeasurement(80, 65, 30.4f);
+
+// notice : with the blocking default, ONE slow subscriber slow down the SUBJECT,
+// that is the point of backpressure, use dropWhenFull if the sensor must never wait
+
+
+
+// Instrumentation : which OBSERVER make notifyObservers() slow?
+
+// idea : DECORATOR again, wrap each OBSERVER with a timing OBSERVER
+// 		 only when instrumentation is on, so when it is off the notify loop
+//		 call the real OBSERVER directly -> zero overhead
+// 		 latency is recorded into a log scale histogram with atomic counters, no lock
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+// bucket i hold latencies in [2^i, 2^(i+1)) nanoseconds, like HdrHistogram with 1 significant bit
+public class LatencyHistogram{
+	private final AtomicLongArray counts = new AtomicLongArray(64);
+	private final AtomicLong max = new AtomicLong(); // exact, the buckets only give a bound
+
+	public void record(long nanos){
+		int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+		counts.incrementAndGet(bucket);
+		long seen = max.get();
+		while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+			seen = max.get();
+		}
+	}
+
+	public long max(){
+		return max.get();
+	}
+
+	// copy of the counts, not atomic across buckets but good enough for monitoring
+	public long[] snapshot(){
+		long[] copy = new long[counts.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	// upper bound of the bucket that contain the p percentile
+	public static long percentile(long[] snapshot, double p){
+		long total = 0;
+		for (long c : snapshot) {
+			total += c;
+		}
+		long rank = (long)Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && seen > 0) {
+				return 1L << (i + 1);
+			}
+		}
+		return 0;
+	}
+}
+
+public class TimedObserver implements Observer{
+	final Observer target;
+	final LatencyHistogram latency = new LatencyHistogram();
+
+	TimedObserver(Observer target){
+		this.target = target;
+	}
+
+	public void update(float temperature, float humidity, float pressure){
+		long start = System.nanoTime();
+		try {
+			target.update(temperature, humidity, pressure);
+		} finally {
+			latency.record(System.nanoTime() - start);
+		}
+	}
+}
+
+// MBean interface name must be class name + "MBean"
+public interface SubjectStatsMBean{
+	public long getNotifications();
+	public long getFanOut();	// observer calls in total
+	public long getDropped();
+	public long getCoalesced();
+	public String[] getObserverLatencies(); // "observer p50 p99 max" in nanos, p50 / p99 are bucket upper bounds
+}
+
+public class SubjectStats implements SubjectStatsMBean{
+	// dropped / coalesced are increased by AsyncObserver and CoalescingWeatherData
+	// when they throw away or merge a reading, hand them the stats with setStats()
+	final AtomicLong notifications = new AtomicLong();
+	final AtomicLong fanOut = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong coalesced = new AtomicLong();
+	final CopyOnWriteArrayList<TimedObserver> observers = new CopyOnWriteArrayList<TimedObserver>();
+
+	public long getNotifications(){
+		return notifications.get();
+	}
+	public long getFanOut(){
+		return fanOut.get();
+	}
+	public long getDropped(){
+		return dropped.get();
+	}
+	public long getCoalesced(){
+		return coalesced.get();
+	}
+
+	// the pollable snapshot API, also what JMX show
+	public String[] getObserverLatencies(){
+		String[] rows = new String[observers.size()];
+		int i = 0;
+		for (TimedObserver o : observers) {
+			long[] s = o.latency.snapshot();
+			rows[i++] = o.target + " " + LatencyHistogram.percentile(s, 0.5)
+				+ " " + LatencyHistogram.percentile(s, 0.99)
+				+ " " + o.latency.max();
+		}
+		return rows;
+	}
+
+	public void registerMBean(String name) throws Exception{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+			new ObjectName("weather:type=SubjectStats,name=" + name));
+	}
+}
+
+// SUBJECT with opt-in instrumentation
+
+public class InstrumentedWeatherData extends WeatherData{
+	private final SubjectStats stats; // null = instrumentation off
+	// register / remove may come from any thread, like the lock free registry of WeatherData
+	// register / remove are synchronized together, so a remove can not run between
+	// the wrapper put and the super register of the same OBSERVER, notify take no lock
+	private final ConcurrentHashMap<Observer, TimedObserver> wrappers = new ConcurrentHashMap<Observer, TimedObserver>();
+	private final AtomicInteger observerCount = new AtomicInteger();
+
+	public InstrumentedWeatherData(SubjectStats stats){
+		this.stats = stats;
+	}
+
+	@Override
+	public synchronized void registerObserver(Observer o){
+		if (stats == null) {
+			super.registerObserver(o);
+			return;
+		}
+		TimedObserver timed = new TimedObserver(o);
+		if (wrappers.putIfAbsent(o, timed) != null) {
+			return; // already registered
+		}
+		stats.observers.add(timed);
+		observerCount.incrementAndGet();
+		super.registerObserver(timed);
+	}
+
+	@Override
+	public synchronized void removeObserver(Observer o){
+		TimedObserver timed = stats == null ? null : wrappers.remove(o);
+		if (timed == null) {
+			super.removeObserver(o);
+			return;
+		}
+		stats.observers.remove(timed);
+		observerCount.decrementAndGet();
+		super.removeObserver(timed);
+	}
+
+	@Override
+	public void notifyObservers(){
+		if (stats != null) {
+			stats.notifications.incrementAndGet();
+			stats.fanOut.addAndGet(observerCount.get());
+		}
+		super.notifyObservers();
+	}
+}
+
+// usage
+// SubjectStats stats = new SubjectStats();
+// stats.registerMBean("station-1");       // see it in jconsole
+// WeatherData weatherData = new InstrumentedWeatherData(stats);  // or null to turn it off
+// asyncObserver.setStats(stats); coalescingWeatherData.setStats(stats); // dropped / coalesced
+
+// notice : System.nanoTime() cost ~20ns, only matter for very cheap observers
+
+
+
+
+
+
+
+
+
+
+
+
+
 
 
 
@@ -183,6 +183,1016 @@ public class Mocha extends CondimentsDecorator{
 
 
 
+// Precomputed cost and description
+
+// Mocha.cost() call beverage.cost() which call the next beverage.cost() ...
+// a 10 condiments coffee is 11 calls for one price, and getDescription()
+// build a new String at every level, every time
+
+// idea : a beverage does not change after it is wrapped, so the decorator can
+// 		 compute cost and description ONCE in the constructor and just return them
+//		 -> cost() and getDescription() are O(1), no allocation
+
+public abstract class PrecomputedCondiment extends CondimentsDecorator{
+	private final Beverage beverage;
+	private final Condiment condiment;
+	private final double cost;
+	private final long costCents;
+	private final String description;
+
+	// name and price come from the Condiment enum, the one place they are defined
+	protected PrecomputedCondiment(Beverage beverage, Condiment condiment){
+		this.beverage = beverage;
+		this.condiment = condiment;
+
+		// the wrapped one is already precomputed (or a plain beverage),
+		// so this is O(1) for each new layer, O(depth) only once in total
+		this.cost = beverage.cost() + condiment.price;
+		this.costCents = beverage.costCents() + condiment.cents;
+		this.description = beverage.getDescription() + ", " + condiment.label;
+	}
+
+	public double cost(){
+		return this.cost;
+	}
+
+	// exact price, see "Money in cents" below
+	public long costCents(){
+		return this.costCents;
+	}
+
+	public long priceCents(){
+		return condiment.cents;
+	}
+
+	public String getDescription(){
+		return this.description;
+	}
+
+	// still keep the wrapped beverage, for code that walk the chain
+	public Beverage getBeverage(){
+		return this.beverage;
+	}
+}
+
+public class Mocha extends PrecomputedCondiment{
+	public Mocha(Beverage b){
+		super(b, Condiment.MOCHA);
+	}
+}
+
+public class Whip extends PrecomputedCondiment{
+	public Whip(Beverage b){
+		super(b, Condiment.WHIP);
+	}
+}
+
+public class Soy extends PrecomputedCondiment{
+	public Soy(Beverage b){
+		super(b, Condiment.SOY);
+	}
+}
+
+// same usage as before
+// Beverage b = new Whip(new Mocha(new Mocha(new Espresso())));
+// b.cost(); // just a field read
+
+// notice : only correct if a beverage price does not change after it is built,
+// if the base price can change (eg. happy hour), keep the old recursive decorator
+// or build the chain again
+
+
+// JMH comparison sketch : 10 deep chain, Espresso + 10 condiments
+// - recursive : a decorator like the book Mocha (cost() and getDescription() walk the chain)
+// - precomputed : the PrecomputedCondiment chain
+// run with -prof gc, precomputed should show 0 bytes per op
+
+import org.openjdk.jmh.annotations.*;
+
+// the book decorator, with name and price as parameters so one class can play all condiments
+public class RecursiveCondiment extends CondimentsDecorator{
+	final Beverage beverage;
+	final String name;
+	final double price;
+	final long cents;
+
+	public RecursiveCondiment(Beverage beverage, String name, double price){
+		this.beverage = beverage;
+		this.name = name;
+		this.price = price;
+		this.cents = Math.round(price * 100);
+	}
+
+	public String getDescription(){
+		return beverage.getDescription() + ", " + name;
+	}
+
+	public double cost(){
+		return beverage.cost() + price;
+	}
+
+	public Beverage getBeverage(){
+		return this.beverage;
+	}
+
+	// same contract as every CondimentsDecorator, see "Money in cents" below
+	public long priceCents(){
+		return this.cents;
+	}
+
+	// walk the chain like cost(), it is the recursive baseline
+	public long costCents(){
+		return beverage.costCents() + cents;
+	}
+}
+
+@State(Scope.Thread)
+public class BeverageChainBenchmark{
+	static final int DEPTH = 10;
+
+	Beverage recursive;
+	Beverage precomputed;
+
+	@Setup
+	public void setup(){
+		recursive = new Espresso();
+		precomputed = new Espresso();
+		for (int i = 0; i < DEPTH; i++) {
+			// same condiments in the same order on both chains
+			switch (i % 3) {
+				case 0:
+					recursive = new RecursiveCondiment(recursive, "Mocha", 0.20);
+					precomputed = new Mocha(precomputed);
+					break;
+				case 1:
+					recursive = new RecursiveCondiment(recursive, "Whip", 0.10);
+					precomputed = new Whip(precomputed);
+					break;
+				default:
+					recursive = new RecursiveCondiment(recursive, "Soy", 0.15);
+					precomputed = new Soy(precomputed);
+					break;
+			}
+		}
+	}
+
+	@Benchmark
+	public double recursiveCost(){
+		return recursive.cost();
+	}
+
+	@Benchmark
+	public double precomputedCost(){
+		return precomputed.cost();
+	}
+
+	@Benchmark
+	public String recursiveDescription(){
+		return recursive.getDescription();
+	}
+
+	@Benchmark
+	public String precomputedDescription(){
+		return precomputed.getDescription();
+	}
+}
+
+
+
+// Flattened beverage : one object instead of a chain of decorators
+
+// Espresso + N condiments = N + 1 objects, each cost() follow N pointers
+// for order entry with millions of drinks this is a lot of small objects
+
+// idea : the condiments are only data (name + price), so keep them as a
+// 		 compact array of condiment ids on ONE object
+//		 keep the ORDER, the description and the double sum must be the same
+//		 as the decorator chain (double addition is not associative)
+
+import java.util.ArrayList;
+
+// to flatten ANY chain, every decorator must hand out what it wraps
+// (the book Mocha just return its beverage field)
+public abstract class CondimentsDecorator extends Beverage{
+	public abstract String getDescription();
+
+	public abstract Beverage getBeverage();
+}
+
+public enum Condiment{
+	MOCHA("Mocha", 20, Mocha.class),
+	WHIP("Whip", 10, Whip.class),
+	SOY("Soy", 15, Soy.class);
+
+	final String label;
+	final long cents;	// the exact price
+	final double price;	// for the old double cost(), cents / 100.0 is the same double as the literal
+	final Class<? extends CondimentsDecorator> decorator;
+
+	Condiment(String label, long cents, Class<? extends CondimentsDecorator> decorator){
+		this.label = label;
+		this.cents = cents;
+		this.price = cents / 100.0;
+		this.decorator = decorator;
+	}
+
+	static Condiment of(Beverage decorator){
+		for (Condiment c : values()) {
+			if (c.decorator == decorator.getClass()) {
+				return c;
+			}
+		}
+		throw new IllegalArgumentException("unknown condiment: " + decorator.getClass());
+	}
+}
+
+public final class FlatBeverage extends Beverage{
+	private static final Condiment[] CONDIMENTS = Condiment.values();
+
+	private final Beverage base;		// Espresso, HouseBlend ... never a decorator
+	private final byte[] condiments;	// ordinals, in the order they were added
+
+	public FlatBeverage(Beverage base, Condiment... condiments){
+		if (base instanceof CondimentsDecorator) {
+			throw new IllegalArgumentException("base must be a plain beverage, use FlatBeverage.from()");
+		}
+		this.base = base;
+		this.condiments = new byte[condiments.length];
+		for (int i = 0; i < condiments.length; i++) {
+			this.condiments[i] = (byte)condiments[i].ordinal();
+		}
+	}
+
+	// same order of addition as base.cost() + c1 + c2 ... in the chain
+	public double cost(){
+		double cost = base.cost();
+		for (int i = 0; i < condiments.length; i++) {
+			cost += CONDIMENTS[condiments[i]].price;
+		}
+		return cost;
+	}
+
+	// exact, no double on the way
+	public long costCents(){
+		long cents = base.costCents();
+		for (int i = 0; i < condiments.length; i++) {
+			cents += CONDIMENTS[condiments[i]].cents;
+		}
+		return cents;
+	}
+
+	public String getDescription(){
+		StringBuilder sb = new StringBuilder(base.getDescription());
+		for (int i = 0; i < condiments.length; i++) {
+			sb.append(", ").append(CONDIMENTS[condiments[i]].label);
+		}
+		return sb.toString();
+	}
+
+	// how many of one condiment, eg. "double mocha"
+	public int count(Condiment c){
+		int n = 0;
+		for (int i = 0; i < condiments.length; i++) {
+			if (condiments[i] == c.ordinal()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public Beverage getBase(){
+		return this.base;
+	}
+
+	public Size getSize(){
+		return base.getSize();
+	}
+
+	// converter from an existing decorator chain, recursive (book) or precomputed
+	// Whip(Mocha(Espresso)) -> FlatBeverage(Espresso, MOCHA, WHIP)
+	// a decorator that is not in the Condiment enum is rejected by Condiment.of()
+	public static FlatBeverage from(Beverage beverage){
+		ArrayList<Condiment> outerFirst = new ArrayList<Condiment>();
+		while (beverage instanceof CondimentsDecorator) {
+			outerFirst.add(Condiment.of(beverage));
+			beverage = ((CondimentsDecorator)beverage).getBeverage();
+		}
+
+		Condiment[] innerFirst = new Condiment[outerFirst.size()];
+		for (int i = 0; i < innerFirst.length; i++) {
+			innerFirst[i] = outerFirst.get(outerFirst.size() - 1 - i);
+		}
+		return new FlatBeverage(beverage, innerFirst);
+	}
+}
+
+// usage
+// Beverage b = new FlatBeverage(new Espresso(), Condiment.MOCHA, Condiment.MOCHA, Condiment.WHIP);
+// same cost() and getDescription() as new Whip(new Mocha(new Mocha(new Espresso())))
+
+// notice : it is still a Beverage, so it can be wrapped by a decorator again,
+// but then the outer decorator is not flat anymore
+
+// the price of one condiment lives ONLY in the enum, the decorator classes
+// read it from there, so the flat and the chained price can not disagree
+
+
+
+// Money in cents : long costCents()
+
+// cost() return double, 0.1 + 0.2 != 0.3 in double, summing thousands of orders drift,
+// and converting every double to BigDecimal afterwards is slow and allocate a lot
+
+// idea : price is a whole number of cents in a long
+// 		 every beverage and condiment know its price in cents, the sum is exact
+//		 cost() stay for old callers
+
+public abstract class Beverage{
+	String description = "Unknown Beverage";
+	Size size = Size.TALL;
+	private boolean frozen; // set once before the beverage is shared, see BeverageInterner
+
+	public String getDescription(){
+		return this.description;
+	}
+
+	// decorators forward it to the beverage they wrap
+	public Size getSize(){
+		return this.size;
+	}
+
+	public void setSize(Size size){
+		if (frozen) {
+			throw new IllegalStateException("shared beverage, the size is fixed: " + getDescription());
+		}
+		this.size = size;
+	}
+
+	// no more setSize(), call it before the beverage is published to other threads
+	final void freeze(){
+		this.frozen = true;
+	}
+
+	public abstract double cost();
+
+	// exact price, subclasses should override it
+	// default is only for old beverages that do not know their cents yet
+	public long costCents(){
+		return Math.round(cost() * 100);
+	}
+}
+
+public abstract class CondimentsDecorator extends Beverage{
+	public abstract String getDescription();
+
+	public abstract Beverage getBeverage();
+
+	// the size of the cup is the size of the drink inside
+	public Size getSize(){
+		return getBeverage().getSize();
+	}
+
+	// the price of THIS condiment only
+	public abstract long priceCents();
+}
+
+public class Espresso extends Beverage{
+	public Espresso(){
+		this.description = "Espresso";
+	}
+
+	public double cost(){
+		return 1.99;
+	}
+
+	public long costCents(){
+		return 199;
+	}
+}
+
+public class HouseBlend extends Beverage{
+	public HouseBlend(){
+		this.description = "HouseBlend";
+	}
+
+	public double cost(){
+		return 0.89;
+	}
+
+	public long costCents(){
+		return 89;
+	}
+}
+
+public class Mocha extends CondimentsDecorator{
+	Beverage beverage;
+
+	public Mocha(Beverage beverage){
+		this.beverage = beverage;
+	}
+
+	public String getDescription(){
+		return beverage.getDescription() + ", Mocha";
+	}
+
+	public double cost(){
+		return beverage.cost() + Condiment.MOCHA.price;
+	}
+
+	public Beverage getBeverage(){
+		return this.beverage;
+	}
+
+	public long priceCents(){
+		return Condiment.MOCHA.cents;
+	}
+
+	public long costCents(){
+		return beverage.costCents() + priceCents();
+	}
+}
+
+// PrecomputedCondiment keep its cents precomputed like its cost, and FlatBeverage
+// sum the cents of the Condiment enum, so every chain above has an exact costCents()
+
+
+import java.math.BigDecimal;
+
+// bulk total for many orders, only a loop over longs, nothing allocated
+public final class OrderTotals{
+	private OrderTotals(){
+
+	}
+
+	public static long totalCents(Beverage[] orders){
+		long total = 0;
+		for (int i = 0; i < orders.length; i++) {
+			// addExact throw instead of silently overflow
+			total = Math.addExact(total, orders[i].costCents());
+		}
+		return total;
+	}
+
+	// only convert ONCE at the end, for the reconciliation layer
+	public static BigDecimal toAmount(long cents){
+		return BigDecimal.valueOf(cents, 2);
+	}
+}
+
+// JMH comparison sketch : 10000 orders
+// - doublePath : sum BigDecimal.valueOf(order.cost()) for every order (what reconciliation do now)
+// - centsPath : OrderTotals.totalCents(orders)
+
+import java.util.Random;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+public class OrderTotalBenchmark{
+	static final int ORDERS = 10000;
+
+	Beverage[] orders;
+
+	@Setup
+	public void setup(){
+		// 10000 random chains of Espresso / HouseBlend with 0 - 3 Mocha
+		Random random = new Random(42); // same orders every run
+		orders = new Beverage[ORDERS];
+		for (int i = 0; i < ORDERS; i++) {
+			Beverage b = random.nextBoolean() ? new Espresso() : new HouseBlend();
+			int mochas = random.nextInt(4);
+			for (int m = 0; m < mochas; m++) {
+				b = new Mocha(b);
+			}
+			orders[i] = b;
+		}
+	}
+
+	@Benchmark
+	public BigDecimal doublePath(){
+		BigDecimal total = BigDecimal.ZERO;
+		for (Beverage b : orders) {
+			total = total.add(BigDecimal.valueOf(b.cost()));
+		}
+		return total;
+	}
+
+	@Benchmark
+	public long centsPath(){
+		return OrderTotals.totalCents(orders);
+	}
+}
+
+
+
+// Batch pricing for end of day
+
+// millions of orders are priced one by one on one thread
+// we want : total, revenue per condiment and per size, using all cores
+
+// idea : parallel stream over the orders, the fork/join pool split the list
+// 		 (ArrayList spliterator split by index, cheap and balanced)
+//		 every split fill its OWN accumulator, no shared counter, no lock
+//		 accumulators are merged once per split at the end
+
+// cup size, as in the book exercise, see Beverage.getSize() in "Money in cents"
+public enum Size{
+	TALL, GRANDE, VENTI
+}
+
+public final class PriceReport{
+	// values() clone the array on every call, keep one copy
+	private static final Condiment[] CONDIMENTS = Condiment.values();
+
+	long totalCents;
+	long orders;
+	final long[] condimentCents = new long[CONDIMENTS.length];
+	final long[] sizeCents = new long[Size.values().length];
+
+	// called for each order, inside one split only
+	void add(Beverage order){
+		long cents = order.costCents();
+		totalCents += cents;
+		orders++;
+		sizeCents[order.getSize().ordinal()] += cents;
+
+		// walk the decorator chain first, recursive (book) or precomputed
+		// a decorator that is not in the Condiment enum throw from Condiment.of(),
+		// which fail the whole batch instead of reporting its revenue as 0
+		Beverage b = order;
+		while (b instanceof CondimentsDecorator) {
+			Condiment c = Condiment.of(b);
+			condimentCents[c.ordinal()] += c.cents;
+			b = ((CondimentsDecorator)b).getBeverage();
+		}
+
+		// then the flat condiments under it, e.g. new Mocha(new FlatBeverage(espresso, WHIP))
+		if (b instanceof FlatBeverage) {
+			FlatBeverage flat = (FlatBeverage)b;
+			for (Condiment c : CONDIMENTS) {
+				condimentCents[c.ordinal()] += flat.count(c) * c.cents;
+			}
+		}
+	}
+
+	// merge two splits
+	PriceReport merge(PriceReport other){
+		totalCents += other.totalCents;
+		orders += other.orders;
+		for (int i = 0; i < condimentCents.length; i++) {
+			condimentCents[i] += other.condimentCents[i];
+		}
+		for (int i = 0; i < sizeCents.length; i++) {
+			sizeCents[i] += other.sizeCents[i];
+		}
+		return this;
+	}
+
+	public long getTotalCents(){
+		return totalCents;
+	}
+	public long getOrders(){
+		return orders;
+	}
+	public long getCondimentCents(Condiment c){
+		return condimentCents[c.ordinal()];
+	}
+	public long getSizeCents(Size s){
+		return sizeCents[s.ordinal()];
+	}
+}
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+public class BatchPricingEngine{
+	private final ForkJoinPool pool;
+
+	public BatchPricingEngine(int parallelism){
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	public PriceReport price(final Collection<? extends Beverage> orders){
+		// run in our own pool, not the common pool shared by the whole JVM
+		return pool.submit(() -> orders.parallelStream().collect(
+			PriceReport::new,		// one new accumulator per split
+			PriceReport::add,
+			PriceReport::merge)).join();
+	}
+
+	public void shutdown(){
+		pool.shutdown();
+	}
+}
+
+// usage
+// PriceReport report = new BatchPricingEngine(8).price(todayOrders);
+// report.getCondimentCents(Condiment.MOCHA);
+
+// notice :
+// 1. all sums are in cents (long), so the result does not depend on how the list is split,
+//    with double the total would change a little from run to run
+// 2. the orders must not be changed while pricing, beverages are immutable after build anyway
+// 3. for a LinkedList or an Iterator source the split is poor, copy into an ArrayList first
+
+
+
+// Our own java.io style decorators, on NIO channels
+
+// BufferedInputStream / LineNumberInputStream copy the data into byte[] at every layer
+// for big order logs we want the layers to work IN PLACE on one ByteBuffer
+// (a direct buffer, the OS read straight into it)
+
+// same model as java.io :
+// Abstract Component : ReadableByteChannel
+// Concrete component : FileChannel (FileChannel.open(path))
+// Abstract Decorator : FilterChannel
+// Concrete Decorator : BufferedChannel, LineCountingChannel, LowerCaseChannel, ChecksumChannel
+
+// every decorator : let the inner channel fill dst, then look at / change
+// only the bytes that were just added, [start, dst.position())
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+public abstract class FilterChannel implements ReadableByteChannel{
+	protected final ReadableByteChannel in;
+
+	protected FilterChannel(ReadableByteChannel in){
+		this.in = in;
+	}
+
+	public int read(ByteBuffer dst) throws IOException{
+		int start = dst.position();
+		int n = in.read(dst);
+		if (n > 0) {
+			filter(dst, start, dst.position());
+		}
+		return n;
+	}
+
+	// new bytes are dst[from, to), use absolute get / put, do not move the position
+	protected abstract void filter(ByteBuffer dst, int from, int to);
+
+	public boolean isOpen(){
+		return in.isOpen();
+	}
+
+	public void close() throws IOException{
+		in.close();
+	}
+}
+
+// same line ends as LineNumberInputStream : \n, \r and \r\n each end ONE line
+public class LineCountingChannel extends FilterChannel{
+	private long lines;
+	private boolean afterCr; // a \r\n may be split between two reads
+
+	public LineCountingChannel(ReadableByteChannel in){
+		super(in);
+	}
+
+	protected void filter(ByteBuffer dst, int from, int to){
+		for (int i = from; i < to; i++) {
+			byte b = dst.get(i);
+			if (b == '\r') {
+				lines++;
+				afterCr = true;
+			} else {
+				if (b == '\n' && !afterCr) {
+					lines++;
+				}
+				afterCr = false;
+			}
+		}
+	}
+
+	public long getLineNumber(){
+		return lines;
+	}
+}
+
+// ASCII only, like the LowerCaseInputStream example in the book
+public class LowerCaseChannel extends FilterChannel{
+	public LowerCaseChannel(ReadableByteChannel in){
+		super(in);
+	}
+
+	protected void filter(ByteBuffer dst, int from, int to){
+		for (int i = from; i < to; i++) {
+			byte b = dst.get(i);
+			if (b >= 'A' && b <= 'Z') {
+				dst.put(i, (byte)(b + ('a' - 'A')));
+			}
+		}
+	}
+}
+
+public class ChecksumChannel extends FilterChannel{
+	private final CRC32 crc = new CRC32();
+
+	public ChecksumChannel(ReadableByteChannel in){
+		super(in);
+	}
+
+	protected void filter(ByteBuffer dst, int from, int to){
+		// CRC32.update(ByteBuffer) read a direct buffer without copying to byte[]
+		ByteBuffer view = dst.duplicate();
+		view.limit(to).position(from);
+		crc.update(view);
+	}
+
+	public long getChecksum(){
+		return crc.getValue();
+	}
+}
+
+// buffering : read big chunks from the inner channel, even if the caller ask for small reads
+// this layer is the only one that copy, direct buffer to the caller buffer (no byte[])
+public class BufferedChannel implements ReadableByteChannel{
+	private final ReadableByteChannel in;
+	private final ByteBuffer buffer;
+
+	public BufferedChannel(ReadableByteChannel in, int size){
+		this.in = in;
+		this.buffer = ByteBuffer.allocateDirect(size);
+		this.buffer.flip(); // start empty, in read mode
+	}
+
+	public int read(ByteBuffer dst) throws IOException{
+		if (!buffer.hasRemaining()) {
+			// a big caller buffer skip our buffer, no copy at all
+			if (dst.remaining() >= buffer.capacity()) {
+				return in.read(dst);
+			}
+			buffer.clear();
+			int n = in.read(buffer);
+			buffer.flip();
+			if (n <= 0) {
+				return n;
+			}
+		}
+		int n = Math.min(buffer.remaining(), dst.remaining());
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(slice.position() + n);
+		dst.put(slice);
+		buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	public boolean isOpen(){
+		return in.isOpen();
+	}
+
+	public void close() throws IOException{
+		in.close();
+	}
+}
+
+// usage, wrap it like the java.io stack
+// LineCountingChannel lines = new LineCountingChannel(
+//		new LowerCaseChannel(
+//			new BufferedChannel(FileChannel.open(Paths.get("orders.log")), 1 << 16)));
+// ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+// while (lines.read(buf) != -1) { buf.clear(); }
+
+
+// throughput test : generated order log, page cache warm after the first iteration
+// - streams : new LineNumberInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16)),
+//			   read(byte[64k]) until -1, then getLineNumber()
+// - channels : LineCountingChannel(BufferedChannel(FileChannel)), read(direct 64k) until -1
+// compare MB/s, setup check that both report the same line count
+// (LineNumberInputStream is deprecated, it is only here as the book's baseline)
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.LineNumberInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+public class OrderLogReadBenchmark{
+	// ~40 bytes per line, 16M lines is about 640 MB
+	@Param({"16777216"})
+	int lines;
+
+	String file;
+
+	@Setup
+	public void setup() throws IOException{
+		Path path = Files.createTempFile("orders", ".log");
+		file = path.toString();
+		BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII);
+		try {
+			for (int i = 0; i < lines; i++) {
+				out.write("order-" + i + ",Espresso,Mocha,Whip,Soy");
+				// mostly \n, some \r\n like a log edited on Windows
+				out.write(i % 16 == 0 ? "\r\n" : "\n");
+			}
+		} finally {
+			out.close();
+		}
+
+		long s = streams();
+		long c = channels();
+		if (s != lines || c != lines) {
+			throw new IllegalStateException("line count mismatch, expected " + lines
+				+ " streams " + s + " channels " + c);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException{
+		Files.deleteIfExists(Paths.get(file));
+	}
+
+	@Benchmark
+	public long streams() throws IOException{
+		LineNumberInputStream in = new LineNumberInputStream(
+			new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			byte[] buf = new byte[1 << 16];
+			while (in.read(buf) != -1) {
+			}
+			return in.getLineNumber();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public long channels() throws IOException{
+		LineCountingChannel in = new LineCountingChannel(
+			new BufferedChannel(FileChannel.open(Paths.get(file)), 1 << 16));
+		try {
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+			while (in.read(buf) != -1) {
+				buf.clear();
+			}
+			return in.getLineNumber();
+		} finally {
+			in.close();
+		}
+	}
+}
+
+
+
+// Interning : same drink, same object
+
+// most orders are the same few dozen drinks, but each order build a new
+// Mocha(Whip(HouseBlend)) chain
+// the chains are immutable (see PrecomputedCondiment), so one chain can be
+// shared by every order of that drink, with its cost already computed
+
+// idea : a cache keyed by (base beverage class, size, condiments in order)
+// 		 bounded, least recently used drink is evicted when full
+//		 LinkedHashMap with access order does the LRU for us
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BeverageInterner{
+	// key : base class + size + condiment ordinals, order matters
+	static final class Key{
+		final Class<? extends Beverage> base;
+		final Size size;
+		final byte[] condiments;
+		final int hash;
+
+		Key(Class<? extends Beverage> base, Size size, Condiment[] condiments){
+			this.base = base;
+			this.size = size;
+			this.condiments = new byte[condiments.length];
+			for (int i = 0; i < condiments.length; i++) {
+				this.condiments[i] = (byte)condiments[i].ordinal();
+			}
+			this.hash = (31 * base.hashCode() + size.ordinal()) * 31 + Arrays.hashCode(this.condiments);
+		}
+
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return base == k.base && size == k.size && Arrays.equals(condiments, k.condiments);
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+	}
+
+	private final Map<Key, Beverage> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public BeverageInterner(final int maxSize){
+		// true = access order, get() move the entry to the end
+		this.cache = new LinkedHashMap<Key, Beverage>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Beverage> eldest){
+				return size() > maxSize;
+			}
+		};
+	}
+
+	// condiments from inner to outer : (HouseBlend, GRANDE, WHIP, MOCHA) = Mocha(Whip(grande HouseBlend))
+	// the returned chain is shared, setSize() on any layer of it throw
+	public Beverage get(Class<? extends Beverage> base, Size size, Condiment... condiments){
+		Key key = new Key(base, size, condiments);
+		synchronized (cache) {
+			Beverage b = cache.get(key);
+			if (b != null) {
+				hits.incrementAndGet();
+				return b;
+			}
+		}
+
+		// build outside the lock, two threads may build the same drink at once,
+		// check again before put so the one already cached win,
+		// every caller of one drink always get the SAME instance
+		misses.incrementAndGet();
+		Beverage built = build(base, size, condiments);
+		synchronized (cache) {
+			Beverage existing = cache.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			cache.put(key, built);
+		}
+		return built;
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public int size(){
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	private static Beverage build(Class<? extends Beverage> base, Size size, Condiment[] condiments){
+		Beverage b;
+		try {
+			b = base.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("beverage needs a no-arg constructor: " + base, e);
+		}
+		b.setSize(size);
+		b.freeze();
+		for (Condiment c : condiments) {
+			b = wrap(b, c);
+			b.freeze();
+		}
+		return b;
+	}
+
+	private static Beverage wrap(Beverage b, Condiment c){
+		switch (c) {
+			case MOCHA:
+				return new Mocha(b);
+			case WHIP:
+				return new Whip(b);
+			case SOY:
+				return new Soy(b);
+			default:
+				throw new IllegalArgumentException("unknown condiment: " + c);
+		}
+	}
+}
+
+// usage
+// BeverageInterner interner = new BeverageInterner(256);
+// Beverage b = interner.get(HouseBlend.class, Size.GRANDE, Condiment.WHIP, Condiment.MOCHA);
+// b.cost(); // precomputed, and the same object for the next identical order
+
+// notice :
+// 1. only for IMMUTABLE chains, the interner freeze every layer so setSize() on a shared drink throw
+// 2. the lookup still allocate one small Key, a miss allocate the whole chain once
+// 3. hit rate = hits / (hits + misses), if it is low the cache is too small or the menu too big
+
+
+
+
+
+
+
+
+
 
 
 
@@ -399,5 +399,634 @@ public class ThickDough implements Dough{
 
 
 
+// Table driven simple factory
+
+// createPizza(String type) compare the type with every name in the if / else chain,
+// a pizza at the end of the menu pay for all the equals() before it,
+// and adding a pizza means editing the chain
+
+// idea : build a table ONCE, name -> constructor (Supplier)
+//		 lookup is one hash lookup (String cache its hash code), then one call
+//		 no reflection, the suppliers are constructor references
+//		 callers that already know the type use the enum and skip the string completely
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public enum PizzaType{
+	CHEESE("Cheese", CheesePizza::new),
+	PEPPERONI("pepperoni", PepperoniPizza::new),
+	CLAM("clam", ClamPizza::new),
+	VEGGIE("veggie", VeggiePizza::new);
+
+	final String menuName;
+	final Supplier<Pizza> constructor;
+
+	PizzaType(String menuName, Supplier<Pizza> constructor){
+		this.menuName = menuName;
+		this.constructor = constructor;
+	}
+}
+
+public class TablePizzaFactory{
+	private final Map<String, Supplier<Pizza>> byName = new HashMap<String, Supplier<Pizza>>();
+
+	public TablePizzaFactory(){
+		for (PizzaType t : PizzaType.values()) {
+			byName.put(t.menuName, t.constructor);
+		}
+	}
+
+	// a new pizza from somewhere else (eg. a franchise special) without touching the enum
+	public void register(String name, Supplier<Pizza> constructor){
+		byName.put(name, constructor);
+	}
+
+	// same contract as SimplePizzaFactory : unknown type return null
+	public Pizza createPizza(String type){
+		Supplier<Pizza> constructor = byName.get(type);
+		return constructor == null ? null : constructor.get();
+	}
+
+	// no string at all, enum field read + call
+	public Pizza createPizza(PizzaType type){
+		return type.constructor.get();
+	}
+}
+
+// PizzaStore does not change, it still call factory.createPizza(type)
+// (TablePizzaFactory can extend SimplePizzaFactory and override createPizza to be a drop in)
+
+// notice : register() is not thread safe, register everything at startup,
+// then the map is only read
+
+
+// JMH comparison sketch, order mix : 50% Cheese, 30% pepperoni, 15% veggie, 5% clam
+// the order names come from a pre generated array of NEW String objects built from
+// char[] (like names parsed from a request), new String(name) would copy the cached hash
+// the array is rebuilt every iteration, inside one iteration a hash is computed once per string
+
+import java.util.Random;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+public class PizzaFactoryBenchmark{
+	// power of two, so "next & MASK" wrap around without a division
+	static final int ORDERS = 1 << 12;
+	static final int MASK = ORDERS - 1;
+
+	SimplePizzaFactory chain = new SimplePizzaFactory();
+	TablePizzaFactory table = new TablePizzaFactory();
+	String[] orders;
+	int next;
+
+	@Setup(Level.Iteration)
+	public void setup(){
+		Random random = new Random(42); // same mix every iteration
+		orders = new String[ORDERS];
+		for (int i = 0; i < ORDERS; i++) {
+			int p = random.nextInt(100);
+			String name = p < 50 ? "Cheese" : p < 80 ? "pepperoni" : p < 95 ? "veggie" : "clam";
+			orders[i] = new String(name.toCharArray());
+		}
+	}
+
+	@Benchmark
+	public Pizza ifElseChain(){
+		return chain.createPizza(orders[next++ & MASK]);
+	}
+
+	@Benchmark
+	public Pizza hashTable(){
+		return table.createPizza(orders[next++ & MASK]);
+	}
+}
+
+
+
+// Pooled pizzas : recycle instead of allocate
+
+// every orderPizza() create a Pizza, and prepare() create dough, sauce, cheese,
+// a Veggies[] and the veggies, all of them are garbage as soon as the pizza is boxed
+// at tens of thousands of orders per second this keep the GC busy
+
+// idea : OBJECT POOL
+// 		 - release() put the pizza back, acquire() give a used one back out
+//		 - the pooled pizza KEEP its ingredients, a pizza of the same type from the same
+//		   ingredient factory get the same kind of ingredients anyway,
+//		   so prepare() only call the factory the first time
+//		 - one pool per thread (ThreadLocal), no lock, no contention
+//		 - reset() on release clear what belong to one order (how far it got in the kitchen)
+
+public abstract class PooledPizza extends Pizza{
+	final PizzaIngredientFactory ingredientsFactory;
+	private boolean prepared;
+
+	// per order state, cleared by reset()
+	boolean baked;
+	boolean cut;
+	boolean boxed;
+	boolean inPool; // guard against release twice
+
+	protected PooledPizza(PizzaIngredientFactory ingredientsFactory){
+		this.ingredientsFactory = ingredientsFactory;
+	}
+
+	final void prepare(){
+		if (!prepared) {
+			loadIngredients(); // only for a brand new pizza
+			prepared = true;
+		}
+	}
+
+	// same as the old prepare() of the concrete pizza
+	abstract void loadIngredients();
+
+	void bake(){
+		super.bake();
+		baked = true;
+	}
+
+	void cut(){
+		super.cut();
+		cut = true;
+	}
+
+	void box(){
+		super.box();
+		boxed = true;
+	}
+
+	// called by the pool on release, clear per order state so the next order
+	// start from a fresh pizza (the ingredients stay, see above)
+	// a pizza with stateful ingredients must override it and call forgetIngredients()
+	void reset(){
+		baked = false;
+		cut = false;
+		boxed = false;
+	}
+
+	void forgetIngredients(){
+		prepared = false;
+	}
+}
+
+public class PooledCheesePizza extends PooledPizza{
+	public PooledCheesePizza(PizzaIngredientFactory ingredientsFactory){
+		super(ingredientsFactory);
+	}
+
+	void loadIngredients(){
+		dough = ingredientsFactory.createDough();
+		sauce = ingredientsFactory.createSauce();
+		cheese = ingredientsFactory.createCheese();
+	}
+}
+
+public class PooledPepperoniPizza extends PooledPizza{
+	public PooledPepperoniPizza(PizzaIngredientFactory ingredientsFactory){
+		super(ingredientsFactory);
+	}
+
+	void loadIngredients(){
+		dough = ingredientsFactory.createDough();
+		sauce = ingredientsFactory.createSauce();
+		cheese = ingredientsFactory.createCheese();
+		pepperoni = ingredientsFactory.createPepperoni();
+	}
+}
+
+public class PooledClamPizza extends PooledPizza{
+	public PooledClamPizza(PizzaIngredientFactory ingredientsFactory){
+		super(ingredientsFactory);
+	}
+
+	void loadIngredients(){
+		dough = ingredientsFactory.createDough();
+		sauce = ingredientsFactory.createSauce();
+		cheese = ingredientsFactory.createCheese();
+		clam = ingredientsFactory.createClam();
+	}
+}
+
+public class PooledVeggiePizza extends PooledPizza{
+	public PooledVeggiePizza(PizzaIngredientFactory ingredientsFactory){
+		super(ingredientsFactory);
+	}
+
+	void loadIngredients(){
+		dough = ingredientsFactory.createDough();
+		sauce = ingredientsFactory.createSauce();
+		cheese = ingredientsFactory.createCheese();
+		veggies = ingredientsFactory.createVeggies();
+	}
+}
+
+import java.util.ArrayDeque;
+import java.util.function.Function;
+
+public class PizzaPool{
+	private final Function<PizzaIngredientFactory, PooledPizza> constructor;
+	private final PizzaIngredientFactory ingredientsFactory;
+	private final int maxPerThread;
+
+	private final ThreadLocal<ArrayDeque<PooledPizza>> free = new ThreadLocal<ArrayDeque<PooledPizza>>() {
+		protected ArrayDeque<PooledPizza> initialValue(){
+			return new ArrayDeque<PooledPizza>();
+		}
+	};
+
+	// one pool per (pizza type, ingredient factory)
+	public PizzaPool(Function<PizzaIngredientFactory, PooledPizza> constructor,
+			PizzaIngredientFactory ingredientsFactory, int maxPerThread){
+		this.constructor = constructor;
+		this.ingredientsFactory = ingredientsFactory;
+		this.maxPerThread = maxPerThread;
+	}
+
+	public PooledPizza acquire(){
+		PooledPizza pizza = free.get().pollFirst();
+		if (pizza == null) {
+			return constructor.apply(ingredientsFactory);
+		}
+		pizza.inPool = false;
+		return pizza;
+	}
+
+	// the caller must not touch the pizza after release
+	// a pizza released on another thread just go to THAT thread pool
+	public void release(PooledPizza pizza){
+		if (pizza.inPool) {
+			throw new IllegalStateException("pizza released twice");
+		}
+		pizza.reset();
+		// mark it even when it is dropped below, so a second release still throw
+		pizza.inPool = true;
+		ArrayDeque<PooledPizza> pool = free.get();
+		if (pool.size() < maxPerThread) {
+			pool.addFirst(pizza); // LIFO, the last used one is still hot in the cache
+		}
+		// else drop it, the GC take it
+	}
+}
+
+// NY store with pools, orderPizza() is unchanged, the pizza is released when the
+// order is handed over
+
+public class PooledNYPizzaStore extends PizzaStore{
+	private final PizzaIngredientFactory ingredientsFactory = new NYPizzaIngredientStore();
+	private final PizzaPool cheese = new PizzaPool(PooledCheesePizza::new, ingredientsFactory, 256);
+	private final PizzaPool pepperoni = new PizzaPool(PooledPepperoniPizza::new, ingredientsFactory, 64);
+	private final PizzaPool clam = new PizzaPool(PooledClamPizza::new, ingredientsFactory, 64);
+	private final PizzaPool veggie = new PizzaPool(PooledVeggiePizza::new, ingredientsFactory, 64);
+
+	// the whole menu is pooled, cheese (most of the orders) get the biggest pool
+	Pizza createPizza(String type){
+		if (type.equals("Cheese")) {
+			return cheese.acquire();
+		} else if(type.equals("pepperoni")){
+			return pepperoni.acquire();
+		} else if(type.equals("clam")){
+			return clam.acquire();
+		} else if(type.equals("veggie")){
+			return veggie.acquire();
+		}
+		return null;
+	}
+
+	// each pizza go back to the pool of its own type
+	public void orderDone(Pizza pizza){
+		if (pizza instanceof PooledCheesePizza) {
+			cheese.release((PooledPizza)pizza);
+		} else if (pizza instanceof PooledPepperoniPizza) {
+			pepperoni.release((PooledPizza)pizza);
+		} else if (pizza instanceof PooledClamPizza) {
+			clam.release((PooledPizza)pizza);
+		} else if (pizza instanceof PooledVeggiePizza) {
+			veggie.release((PooledPizza)pizza);
+		}
+	}
+}
+
+// notice :
+// 1. a pizza released twice, or used after release, is a bug the GC would have
+//    protected us from, pools trade safety for speed
+// 2. a pooled object live long, it go to the old generation, so a pool that is
+//    too big cost more than it save
+
+// how to measure the GC effect : same order load for 5 minutes, plain vs pooled store
+// run with -Xlog:gc (Java 9+) or -verbose:gc, compare young GC count and total pause time,
+// and the allocation rate (jstat -gcutil <pid> 1000, or JFR allocation events)
+
+
+
+// Pipelined order : prepare / bake / cut / box on their own stages
+
+// orderPizza() do the 4 steps one after another on the caller thread,
+// only one order is in the kitchen per caller
+
+// idea : like a real kitchen line, each step is a STAGE with its own workers and
+// 		 a bounded queue in front of it, an order flow stage to stage
+//		 many orders are in flight, but one order still go prepare -> bake -> cut -> box
+//		 full queue = the previous stage wait (backpressure), nothing grow without limit
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class Stage{
+	final String name;
+	final ThreadPoolExecutor executor;
+	final AtomicLong served = new AtomicLong();
+	final AtomicLong busyNanos = new AtomicLong();
+
+	Stage(String name, int workers, int queueSize){
+		this.name = name;
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), new BlockWhenFull());
+	}
+
+	// run one step of one order on this stage, and measure it
+	CompletableFuture<Pizza> then(CompletableFuture<Pizza> previous, final Consumer<Pizza> step){
+		return previous.thenApplyAsync(pizza -> {
+			long start = System.nanoTime();
+			step.accept(pizza);
+			busyNanos.addAndGet(System.nanoTime() - start);
+			served.incrementAndGet();
+			return pizza;
+		}, executor);
+	}
+
+	public int getQueueDepth(){
+		return executor.getQueue().size();
+	}
+
+	// average service time of one step, in nanos
+	public long getAverageServiceNanos(){
+		long n = served.get();
+		return n == 0 ? 0 : busyNanos.get() / n;
+	}
+
+	// a full queue block the thread that hand over the order (the previous stage)
+	// the executor also call this after shutdown(), then nothing would drain the queue,
+	// so reject for real, the order future complete with the exception
+	static class BlockWhenFull implements RejectedExecutionHandler{
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor){
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("stage is shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+			// shut down while we were waiting : take it back if no worker will run it
+			if (executor.isShutdown() && executor.getQueue().remove(r)) {
+				throw new RejectedExecutionException("stage is shut down");
+			}
+		}
+	}
+}
+
+public class PipelinedPizzaStore{
+	private final PizzaStore store; // still decide WHICH pizza (factory method)
+	private final Stage prepare;
+	private final Stage bake;
+	private final Stage cut;
+	private final Stage box;
+
+	public PipelinedPizzaStore(PizzaStore store, int workersPerStage, int queueSize){
+		this.store = store;
+		this.prepare = new Stage("prepare", workersPerStage, queueSize);
+		this.bake = new Stage("bake", workersPerStage, queueSize);
+		this.cut = new Stage("cut", workersPerStage, queueSize);
+		this.box = new Stage("box", workersPerStage, queueSize);
+	}
+
+	// return at once, the future complete when the pizza is boxed
+	public CompletableFuture<Pizza> orderPizza(String type){
+		Pizza pizza = store.createPizza(type);
+		if (pizza == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// each step start only after the previous one of the SAME order is done
+		CompletableFuture<Pizza> order = CompletableFuture.completedFuture(pizza);
+		order = prepare.then(order, Pizza::prepare);
+		order = bake.then(order, Pizza::bake);
+		order = cut.then(order, Pizza::cut);
+		order = box.then(order, Pizza::box);
+		return order;
+	}
+
+	public Stage[] stages(){
+		return new Stage[]{ prepare, bake, cut, box };
+	}
+
+	// stop the stages in kitchen order : when prepare is done, every order it finished
+	// is already queued at bake, and so on, so the orders in flight still get boxed
+	public void shutdown() throws InterruptedException{
+		for (Stage s : stages()) {
+			s.executor.shutdown();
+			s.executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+}
+
+// usage
+// PipelinedPizzaStore store = new PipelinedPizzaStore(new NYPizzaStore(), 2, 64);
+// store.orderPizza("Cheese").thenAccept(pizza -> deliver(pizza));
+// for (Stage s : store.stages())
+//		System.out.println(s.name + " queue=" + s.getQueueDepth() + " avg=" + s.getAverageServiceNanos());
+
+// notice :
+// 1. createPizza() must be callable from the caller thread, PizzaStore subclasses
+//    should not keep per order state
+// 2. the slowest stage decide the throughput, give it more workers
+//    (the metrics above show which one : its queue is full and its service time is high)
+// 3. orders can FINISH in a different order than they came in, only the steps of one
+//    order are in order
+
+
+
+// Caching ingredient factory
+
+// NYPizzaIngredientStore return a NEW ThinCrustDough, MarinaraSauce ... for every pizza,
+// but these ingredients have no per pizza state, one object could serve all pizzas
+
+// idea : DECORATOR over PizzaIngredientFactory (same interface, wrap another factory)
+// 		 ask the real factory once, keep the result if it is immutable, return it again
+//		 an ingredient with state opt out by NOT implementing the marker,
+//		 then every call go to the real factory as before
+//		 the Veggies[] is cached too, so createVeggies() allocate nothing
+
+// marker : "this ingredient never change, it is safe to share between pizzas"
+public interface ImmutableIngredient{
+}
+
+public class ThinCrustDough implements Dough, ImmutableIngredient{
+}
+
+public class MarinaraSauce implements Sauce, ImmutableIngredient{
+}
+
+public class ReggianoCheese implements Cheese, ImmutableIngredient{
+}
+
+public class Garlic implements Veggies, ImmutableIngredient{
+}
+
+public class Onion implements Veggies, ImmutableIngredient{
+}
+
+public class SlicedPepperoni implements Pepperoni, ImmutableIngredient{
+}
+
+public class FreshClams implements Clams, ImmutableIngredient{
+}
+
+// everything NYPizzaIngredientStore make is marked, so every create method of the
+// caching factory below (veggies array included) hit the cache after the first pizza
+
+public class CachingIngredientFactory implements PizzaIngredientFactory{
+	private final PizzaIngredientFactory factory;
+
+	// volatile : a thread that see the reference also see a fully built object
+	// two threads may both ask the real factory the first time, that is harmless
+	private volatile Dough dough;
+	private volatile Sauce sauce;
+	private volatile Cheese cheese;
+	private volatile Veggies[] veggies;
+	private volatile Pepperoni pepperoni;
+	private volatile Clams clam;
+
+	public CachingIngredientFactory(PizzaIngredientFactory factory){
+		this.factory = factory;
+	}
+
+	public Dough createDough(){
+		Dough d = dough;
+		if (d != null) {
+			return d;
+		}
+		d = factory.createDough();
+		if (d instanceof ImmutableIngredient) {
+			dough = d;
+		}
+		return d;
+	}
+
+	public Sauce createSauce(){
+		Sauce s = sauce;
+		if (s != null) {
+			return s;
+		}
+		s = factory.createSauce();
+		if (s instanceof ImmutableIngredient) {
+			sauce = s;
+		}
+		return s;
+	}
+
+	public Cheese createCheese(){
+		Cheese c = cheese;
+		if (c != null) {
+			return c;
+		}
+		c = factory.createCheese();
+		if (c instanceof ImmutableIngredient) {
+			cheese = c;
+		}
+		return c;
+	}
+
+	// the SAME array is returned to every pizza, pizzas must only read it
+	public Veggies[] createVeggies(){
+		Veggies[] v = veggies;
+		if (v != null) {
+			return v;
+		}
+		v = factory.createVeggies();
+		if (allImmutable(v)) {
+			veggies = v;
+		}
+		return v;
+	}
+
+	public Pepperoni createPepperoni(){
+		Pepperoni p = pepperoni;
+		if (p != null) {
+			return p;
+		}
+		p = factory.createPepperoni();
+		if (p instanceof ImmutableIngredient) {
+			pepperoni = p;
+		}
+		return p;
+	}
+
+	public Clams createClam(){
+		Clams c = clam;
+		if (c != null) {
+			return c;
+		}
+		c = factory.createClam();
+		if (c instanceof ImmutableIngredient) {
+			clam = c;
+		}
+		return c;
+	}
+
+	private static boolean allImmutable(Veggies[] veggies){
+		for (Veggies v : veggies) {
+			if (!(v instanceof ImmutableIngredient)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
+
+// the store only change where it get the factory
+
+public class NYPizzaStore extends PizzaStore{
+	// one cached factory for the whole store, not one per createPizza() call
+	private final PizzaIngredientFactory ingredientsFactory =
+		new CachingIngredientFactory(new NYPizzaIngredientStore());
+
+	Pizza createPizza(String type){
+		if (type.equals("Cheese")) {
+			return new NYStyleCheesePizza(ingredientsFactory);
+		} else if(type.equals("pepperoni")){
+			return new NYStylePepperoniPizza(ingredientsFactory);
+		} else if(type.equals("clam")){
+			return new NYStyleClamPizza(ingredientsFactory);
+		} else if(type.equals("veggie")){
+			return new NYStyleVeggiePizza(ingredientsFactory);
+		}
+		return null;
+	}
+}
+
+// notice :
+// 1. the ingredient classes must REALLY be immutable (final fields, no setter),
+//    the marker is a promise the compiler does not check
+// 2. a pizza that want to change its veggies must copy the array first (veggies.clone())
+// 3. with shared ingredients, the pizza pool above does not need to keep ingredients
+//    for GC reasons anymore, only the Pizza objects are left to recycle
+
+
+
+
+
+
+
 
 